@@ -16,18 +16,130 @@
 
 package org.ros.android;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import org.ros.message.sensor_msgs.CompressedImage;
 
 /**
+ * Decodes compressed frames, reusing the bitmaps of frames that are no longer
+ * shown on API 11 and later. {@link #call} must always be called from the
+ * same thread.
+ * 
+ * Once a target size is set, frames are decoded with the largest power of
+ * two {@code inSampleSize} that still leaves at least as many pixels as are
+ * drawn. The sampled bitmap's density is lowered by the same factor, so it
+ * keeps the intrinsic size of the full frame and layouts do not change. Up to
+ * API 18 a bitmap can only be decoded into when it is the exact full size, so
+ * downsampled frames are not pooled there.
+ * 
  * @author damonkohler@google.com (Damon Kohler)
  */
-public class BitmapFromCompressedImage implements MessageCallable<Bitmap, CompressedImage> {
+public class BitmapFromCompressedImage implements RecyclingMessageCallable<CompressedImage>,
+    ScalingMessageCallable<CompressedImage> {
+
+  // The frame on screen, the one being decoded and one waiting to be shown
+  private static final int POOL_SIZE = 3;
+
+  private final BitmapPool pool = new BitmapPool(POOL_SIZE);
+  private final BitmapFactory.Options options = new BitmapFactory.Options();
+  private final int density = Resources.getSystem().getDisplayMetrics().densityDpi;
+
+  private int targetWidth;
+  private int targetHeight;
+  private boolean cover;
+  private volatile int sampleSize = 1;
+
+  @Override
+  public synchronized void setTargetSize(int width, int height, boolean cover) {
+    targetWidth = width;
+    targetHeight = height;
+    this.cover = cover;
+  }
 
   @Override
   public Bitmap call(CompressedImage message) {
-    return BitmapFactory.decodeByteArray(message.data, 0, message.data.length);
+    byte[] data = message.data;
+    // Only the header is parsed to find the source size
+    options.inJustDecodeBounds = true;
+    options.inSampleSize = 1;
+    if (Build.VERSION.SDK_INT >= 11) {
+      options.inBitmap = null;
+    }
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    options.inJustDecodeBounds = false;
+    int sampleSize = sampleSize(options.outWidth, options.outHeight);
+    if (sampleSize != this.sampleSize) {
+      // Pooled bitmaps have the old size and would never match again
+      this.sampleSize = sampleSize;
+      pool.clear();
+    }
+    options.inSampleSize = sampleSize;
+    Bitmap bitmap;
+    if (Build.VERSION.SDK_INT < 11) {
+      bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    } else {
+      bitmap = decodeReusing(data);
+    }
+    if (bitmap != null) {
+      bitmap.setDensity(density / sampleSize);
+    }
+    return bitmap;
+  }
+
+  private int sampleSize(int width, int height) {
+    float scale;
+    synchronized (this) {
+      if (width <= 0 || height <= 0 || targetWidth <= 0 || targetHeight <= 0) {
+        return 1;
+      }
+      float scaleX = (float) targetWidth / width;
+      float scaleY = (float) targetHeight / height;
+      scale = cover ? Math.max(scaleX, scaleY) : Math.min(scaleX, scaleY);
+    }
+    // JPEG decoders only sample down by powers of two
+    int sampleSize = 1;
+    while (scale * sampleSize * 2 <= 1) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private Bitmap decodeReusing(byte[] data) {
+    options.inMutable = true;
+    if (options.inSampleSize == 1 || Build.VERSION.SDK_INT >= 19) {
+      if (options.inSampleSize > 1) {
+        // Parses the header again for the size after sampling
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inJustDecodeBounds = false;
+      }
+      if (options.outWidth > 0 && options.outHeight > 0) {
+        options.inBitmap = pool.get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+      }
+    }
+    try {
+      return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    } catch (IllegalArgumentException e) {
+      // The decoder refused the pooled bitmap; decode into a fresh one
+      Bitmap rejected = options.inBitmap;
+      options.inBitmap = null;
+      if (rejected != null) {
+        rejected.recycle();
+      }
+      return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+  }
+
+  @Override
+  public void recycle(Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT >= 19 || (Build.VERSION.SDK_INT >= 11 && sampleSize == 1)) {
+      pool.put(bitmap);
+    } else {
+      // Frees the native pixels now instead of at finalization
+      bitmap.recycle();
+    }
   }
 
 }
@@ -19,28 +19,257 @@ package org.ros.android;
 import com.google.common.base.Preconditions;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import org.ros.message.sensor_msgs.Image;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
 /**
+ * Converts raw images row by row into a reusable pixel array and uploads it
+ * with a single {@link Bitmap#setPixels} call. Supports rgb8, bgr8, rgba8,
+ * bgra8, mono8 and mono16; mono16 shows the upper 8 bits. Rows can be split
+ * across several threads. {@link #call} must always be called from the same
+ * thread.
+ * 
  * @author damonkohler@google.com (Damon Kohler)
  */
-public class BitmapFromImage implements MessageCallable<Bitmap, Image> {
+public class BitmapFromImage implements RecyclingMessageCallable<Image> {
+
+  private static final int RGB8 = 0;
+  private static final int BGR8 = 1;
+  private static final int RGBA8 = 2;
+  private static final int BGRA8 = 3;
+  private static final int MONO8 = 4;
+  private static final int MONO16 = 5;
+
+  private static final int POOL_SIZE = 3;
+
+  private final BitmapPool pool = new BitmapPool(POOL_SIZE);
+  private final ExecutorService workers;
+  private final RowTask[] tasks;
+  private int[] pixels = new int[0];
+
+  public BitmapFromImage() {
+    this(1);
+  }
+
+  /**
+   * @param threads
+   *          number of threads to split rows across, including the calling
+   *          thread; 1 converts everything on the calling thread
+   */
+  public BitmapFromImage(int threads) {
+    Preconditions.checkArgument(threads >= 1);
+    tasks = new RowTask[threads];
+    for (int i = 0; i < threads; i++) {
+      tasks[i] = new RowTask();
+    }
+    workers = threads > 1 ? Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "BitmapFromImage");
+        thread.setDaemon(true);
+        return thread;
+      }
+    }) : null;
+  }
+
+  /**
+   * Stops the worker threads, if any. Later conversions run entirely on the
+   * calling thread.
+   */
+  public void shutdown() {
+    if (workers != null) {
+      workers.shutdown();
+    }
+  }
 
   @Override
   public Bitmap call(Image message) {
-	  Preconditions.checkArgument(message.encoding.equals("rgb8"));
-    Bitmap bitmap =
-        Bitmap.createBitmap((int) message.width, (int) message.height, Bitmap.Config.ARGB_8888);
-    for (int x = 0; x < message.width; x++) {
-      for (int y = 0; y < message.height; y++) {
-        byte red = message.data[(int) (y * message.step + 3 * x)];
-        byte green = message.data[(int) (y * message.step + 3 * x + 1)];
-        byte blue = message.data[(int) (y * message.step + 3 * x + 2)];
-        bitmap.setPixel(x, y, Color.argb(255, red & 0xFF, green & 0xFF, blue & 0xFF));
+    int format = format(message.encoding);
+    Preconditions.checkArgument(format >= 0, "Unsupported encoding: %s", message.encoding);
+    int width = (int) message.width;
+    int height = (int) message.height;
+    if (pixels.length < width * height) {
+      pixels = new int[width * height];
+    }
+    boolean bigEndian = message.is_bigendian != 0;
+    int chunks = workers == null || workers.isShutdown() ? 1 : Math.min(tasks.length, height);
+    if (chunks <= 1) {
+      convertRows(format, bigEndian, message.data, (int) message.step, width, pixels, 0, height);
+    } else {
+      CountDownLatch done = new CountDownLatch(chunks - 1);
+      for (int i = 0; i < chunks; i++) {
+        RowTask task = tasks[i];
+        task.format = format;
+        task.bigEndian = bigEndian;
+        task.data = message.data;
+        task.step = (int) message.step;
+        task.width = width;
+        task.fromRow = height * i / chunks;
+        task.toRow = height * (i + 1) / chunks;
+        task.out = pixels;
+        task.done = done;
       }
+      for (int i = 1; i < chunks; i++) {
+        try {
+          workers.execute(tasks[i]);
+        } catch (RejectedExecutionException e) {
+          // Shut down meanwhile
+          tasks[i].run();
+        }
+      }
+      tasks[0].done = null;
+      RuntimeException error = null;
+      try {
+        tasks[0].run();
+      } catch (RuntimeException e) {
+        error = e;
+      }
+      // The workers write into pixels, so never return before they are done
+      awaitUninterruptibly(done);
+      for (int i = 0; i < chunks; i++) {
+        if (error == null) {
+          error = tasks[i].error;
+        }
+        tasks[i].error = null;
+      }
+      if (error != null) {
+        throw error;
+      }
+    }
+    Bitmap bitmap = pool.get(width, height, Bitmap.Config.ARGB_8888);
+    if (bitmap == null) {
+      bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
     }
+    bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
     return bitmap;
   }
 
+  @Override
+  public void recycle(Bitmap bitmap) {
+    pool.put(bitmap);
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static int format(String encoding) {
+    if ("rgb8".equals(encoding)) {
+      return RGB8;
+    } else if ("bgr8".equals(encoding)) {
+      return BGR8;
+    } else if ("rgba8".equals(encoding)) {
+      return RGBA8;
+    } else if ("bgra8".equals(encoding)) {
+      return BGRA8;
+    } else if ("mono8".equals(encoding)) {
+      return MONO8;
+    } else if ("mono16".equals(encoding)) {
+      return MONO16;
+    }
+    return -1;
+  }
+
+  private final class RowTask implements Runnable {
+    int format;
+    boolean bigEndian;
+    byte[] data;
+    int step;
+    int width;
+    int fromRow;
+    int toRow;
+    int[] out;
+    CountDownLatch done;
+    // Set when a worker failed, rethrown on the calling thread
+    RuntimeException error;
+
+    @Override
+    public void run() {
+      try {
+        convertRows(format, bigEndian, data, step, width, out, fromRow, toRow);
+      } catch (RuntimeException e) {
+        if (done == null) {
+          throw e;
+        }
+        error = e;
+      } finally {
+        data = null;
+        out = null;
+        if (done != null) {
+          done.countDown();
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts rows [fromRow, toRow) to opaque ARGB, writing each output row
+   * contiguously.
+   */
+  private static void convertRows(int format, boolean bigEndian, byte[] data, int step,
+      int width, int[] out, int fromRow, int toRow) {
+    for (int y = fromRow; y < toRow; y++) {
+      int in = y * step;
+      int o = y * width;
+      int end = o + width;
+      switch (format) {
+        case RGB8:
+          for (; o < end; o++, in += 3) {
+            out[o] = 0xff000000 | (data[in] & 0xff) << 16 | (data[in + 1] & 0xff) << 8
+                | (data[in + 2] & 0xff);
+          }
+          break;
+        case BGR8:
+          for (; o < end; o++, in += 3) {
+            out[o] = 0xff000000 | (data[in + 2] & 0xff) << 16 | (data[in + 1] & 0xff) << 8
+                | (data[in] & 0xff);
+          }
+          break;
+        case RGBA8:
+          for (; o < end; o++, in += 4) {
+            out[o] = 0xff000000 | (data[in] & 0xff) << 16 | (data[in + 1] & 0xff) << 8
+                | (data[in + 2] & 0xff);
+          }
+          break;
+        case BGRA8:
+          for (; o < end; o++, in += 4) {
+            out[o] = 0xff000000 | (data[in + 2] & 0xff) << 16 | (data[in + 1] & 0xff) << 8
+                | (data[in] & 0xff);
+          }
+          break;
+        case MONO8:
+          for (; o < end; o++, in++) {
+            int v = data[in] & 0xff;
+            out[o] = 0xff000000 | v << 16 | v << 8 | v;
+          }
+          break;
+        case MONO16: {
+          // The most significant byte comes first on big endian images
+          int high = bigEndian ? 0 : 1;
+          for (; o < end; o++, in += 2) {
+            int v = data[in + high] & 0xff;
+            out[o] = 0xff000000 | v << 16 | v << 8 | v;
+          }
+          break;
+        }
+      }
+    }
+  }
+
 }
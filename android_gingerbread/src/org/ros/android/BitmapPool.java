@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.ros.android;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of mutable bitmaps keyed by size and config, for decoding
+ * into with {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ * 
+ * Bitmaps beyond the pool's capacity are recycled, oldest first, so memory
+ * stays bounded when the frame size changes. Safe to use from several
+ * threads.
+ */
+public class BitmapPool {
+
+  private final int capacity;
+  private final ArrayList<Bitmap> free;
+
+  public BitmapPool(int capacity) {
+    this.capacity = capacity;
+    free = new ArrayList<Bitmap>(capacity);
+  }
+
+  /**
+   * @return a pooled bitmap of exactly this size and config, or null if
+   *         there is none
+   */
+  public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+    for (int i = free.size() - 1; i >= 0; i--) {
+      Bitmap bitmap = free.get(i);
+      if (bitmap.getWidth() == width && bitmap.getHeight() == height
+          && bitmap.getConfig() == config) {
+        return free.remove(i);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a bitmap that is no longer displayed or read anywhere.
+   */
+  public synchronized void put(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || free.contains(bitmap)) {
+      return;
+    }
+    if (!bitmap.isMutable()) {
+      bitmap.recycle();
+      return;
+    }
+    if (free.size() == capacity) {
+      free.remove(0).recycle();
+    }
+    free.add(bitmap);
+  }
+
+  public synchronized void clear() {
+    for (int i = 0; i < free.size(); i++) {
+      free.get(i).recycle();
+    }
+    free.clear();
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.ros.android;
+
+import android.graphics.Bitmap;
+
+/**
+ * A bitmap converter that can take back the bitmaps it produced once they
+ * are no longer shown, to decode later frames into.
+ */
+public interface RecyclingMessageCallable<MessageType> extends MessageCallable<Bitmap, MessageType> {
+
+  /**
+   * Called once a bitmap returned by {@link #call} is no longer displayed or
+   * was dropped without being displayed.
+   */
+  void recycle(Bitmap bitmap);
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.ros.android;
+
+import android.graphics.Bitmap;
+
+/**
+ * A bitmap converter that can produce smaller bitmaps when they are shown
+ * scaled down anyway.
+ */
+public interface ScalingMessageCallable<MessageType> extends MessageCallable<Bitmap, MessageType> {
+
+  /**
+   * Sets the size in pixels the image is drawn at. Implementations may then
+   * decode at any resolution that is still at least that large. Safe to call
+   * from any thread.
+   * 
+   * @param width
+   *          drawn width, or 0 to always decode at full resolution
+   * @param height
+   *          drawn height, or 0 to always decode at full resolution
+   * @param cover
+   *          true if the image is scaled to cover the whole area, cropping
+   *          or stretching it, false if it is scaled to fit inside it
+   */
+  void setTargetSize(int width, int height, boolean cover);
+
+}
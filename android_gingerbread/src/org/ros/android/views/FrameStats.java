@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.ros.android.views;
+
+/**
+ * Frame delivery statistics of a {@link RosImageView}, collected in windows
+ * that are read and reset by {@link #takeWindow}. Safe to use from several
+ * threads.
+ */
+public class FrameStats {
+
+  /**
+   * One window of statistics.
+   */
+  public static class Window {
+    public int arrived;
+    public int dropped;
+    public int decoded;
+    public double meanIntervalMillis;
+    public double jitterMillis;
+    public double meanDecodeMillis;
+
+    /**
+     * @return the fraction of arrived frames that were never shown
+     */
+    public double dropRate() {
+      return arrived == 0 ? 0 : (double) dropped / arrived;
+    }
+  }
+
+  // Smoothing of the interval and jitter estimates, as in RFC 3550
+  private static final double GAIN = 1.0 / 16;
+
+  private long lastArrivalNanos;
+  private double meanIntervalNanos;
+  private double jitterNanos;
+  private int arrived;
+  private int dropped;
+  private int decoded;
+  private long decodeNanos;
+
+  public synchronized void frameArrived(long nowNanos) {
+    if (lastArrivalNanos != 0) {
+      long interval = nowNanos - lastArrivalNanos;
+      if (meanIntervalNanos == 0) {
+        meanIntervalNanos = interval;
+      }
+      jitterNanos += (Math.abs(interval - meanIntervalNanos) - jitterNanos) * GAIN;
+      meanIntervalNanos += (interval - meanIntervalNanos) * GAIN;
+    }
+    lastArrivalNanos = nowNanos;
+    arrived++;
+  }
+
+  public synchronized void frameDropped() {
+    dropped++;
+  }
+
+  public synchronized void frameDecoded(long elapsedNanos) {
+    decoded++;
+    decodeNanos += elapsedNanos;
+  }
+
+  /**
+   * Copies the current window into {@code out} and starts a new one. The
+   * interval and jitter estimates carry over between windows.
+   */
+  public synchronized void takeWindow(Window out) {
+    out.arrived = arrived;
+    out.dropped = dropped;
+    out.decoded = decoded;
+    out.meanIntervalMillis = meanIntervalNanos / 1e6;
+    out.jitterMillis = jitterNanos / 1e6;
+    out.meanDecodeMillis = decoded == 0 ? 0 : decodeNanos / 1e6 / decoded;
+    arrived = 0;
+    dropped = 0;
+    decoded = 0;
+    decodeNanos = 0;
+  }
+
+  /**
+   * Forgets everything, e.g. after switching to another stream.
+   */
+  public synchronized void reset() {
+    lastArrivalNanos = 0;
+    meanIntervalNanos = 0;
+    jitterNanos = 0;
+    arrived = 0;
+    dropped = 0;
+    decoded = 0;
+    decodeNanos = 0;
+  }
+}
@@ -18,9 +18,13 @@ package org.ros.android.views;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.Process;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.widget.ImageView;
 import org.ros.android.MessageCallable;
+import org.ros.android.RecyclingMessageCallable;
+import org.ros.android.ScalingMessageCallable;
 import org.ros.message.MessageListener;
 import org.ros.namespace.GraphName;
 import org.ros.node.Node;
@@ -30,14 +34,76 @@ import org.ros.node.topic.Subscriber;
 /**
  * A camera node that publishes images and camera_info
  * 
+ * Incoming messages are converted to bitmaps on a dedicated decode thread.
+ * Only the newest undecoded message is kept, so frames that arrive while
+ * another is being decoded replace each other instead of queueing up, and
+ * the UI thread only swaps in finished bitmaps. Arrivals, drops and decode
+ * times are collected in {@link #getFrameStats()}, and the topic can be
+ * changed while the node is running. A {@link ScalingMessageCallable} is
+ * told how large frames are drawn, including any {@link #setZoom zoom}, and
+ * is updated whenever that changes.
+ * 
  * @author ethan.rublee@gmail.com (Ethan Rublee)
  * @author damonkohler@google.com (Damon Kohler)
  */
 public class RosImageView<T> extends ImageView implements NodeMain {
 
+  private static final String TAG = "RosImageView";
+  // Frames that fail to decode are logged at most this often
+  private static final long FAILURE_LOG_INTERVAL_NANOS = 5000000000L;
+
   private String topicName;
   private String messageType;
   private MessageCallable<Bitmap, T> callable;
+  private float zoom = 1;
+
+  private final FrameStats frameStats = new FrameStats();
+  private Node node;
+  private Subscriber<T> subscriber;
+
+  private final MessageListener<T> frameListener = new MessageListener<T>() {
+    @Override
+    public void onNewMessage(T message) {
+      frameStats.frameArrived(System.nanoTime());
+      synchronized (frameLock) {
+        if (pendingFrame != null) {
+          frameStats.frameDropped();
+        }
+        pendingFrame = message;
+        frameLock.notify();
+      }
+    }
+  };
+
+  private final Object frameLock = new Object();
+  // Newest message not yet picked up by the decode thread
+  private T pendingFrame;
+  // Newest decoded bitmap not yet shown
+  private Bitmap decodedFrame;
+  private boolean swapPosted;
+  // Bitmap currently set on the view; only touched on the UI thread
+  private Bitmap shownFrame;
+  private Thread decodeThread;
+  // Only touched on the decode thread
+  private long lastFailureLogNanos;
+  private int failuresSinceLog;
+
+  private final Runnable swapFrame = new Runnable() {
+    @Override
+    public void run() {
+      Bitmap bitmap;
+      synchronized (frameLock) {
+        bitmap = decodedFrame;
+        decodedFrame = null;
+        swapPosted = false;
+      }
+      if (bitmap != null) {
+        setImageBitmap(bitmap);
+        recycle(shownFrame);
+        shownFrame = bitmap;
+      }
+    }
+  };
 
   public RosImageView(Context context) {
     super(context);
@@ -51,8 +117,27 @@ public class RosImageView<T> extends ImageView implements NodeMain {
     super(context, attrs, defStyle);
   }
 
-  public void setTopicName(String topicName) {
+  /**
+   * Sets the image topic; if the node is already running, the view
+   * resubscribes to the new topic right away. Resubscribing registers with
+   * the master, so avoid calling this on the UI thread once started.
+   */
+  public synchronized void setTopicName(String topicName) {
+    if (topicName.equals(this.topicName)) {
+      return;
+    }
     this.topicName = topicName;
+    if (node != null) {
+      subscribe();
+    }
+  }
+
+  public synchronized String getTopicName() {
+    return topicName;
+  }
+
+  public FrameStats getFrameStats() {
+    return frameStats;
   }
 
   public void setMessageType(String messageType) {
@@ -61,6 +146,51 @@ public class RosImageView<T> extends ImageView implements NodeMain {
 
   public void setMessageToBitmapCallable(MessageCallable<Bitmap, T> callable) {
     this.callable = callable;
+    updateTargetSize();
+  }
+
+  /**
+   * Sets how much the frame is magnified beyond what its scale type does,
+   * e.g. by a pinch zoom, so that enough pixels are decoded for it.
+   */
+  public void setZoom(float zoom) {
+    this.zoom = zoom;
+    updateTargetSize();
+  }
+
+  public float getZoom() {
+    return zoom;
+  }
+
+  @Override
+  public void setScaleType(ScaleType scaleType) {
+    super.setScaleType(scaleType);
+    updateTargetSize();
+  }
+
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    super.onSizeChanged(w, h, oldw, oldh);
+    updateTargetSize();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void updateTargetSize() {
+    // Also reached from the ImageView constructor, before callable is set
+    if (!(callable instanceof ScalingMessageCallable)) {
+      return;
+    }
+    int width = getWidth() - getPaddingLeft() - getPaddingRight();
+    int height = getHeight() - getPaddingTop() - getPaddingBottom();
+    ScaleType scaleType = getScaleType();
+    if (scaleType == ScaleType.CENTER || scaleType == ScaleType.MATRIX) {
+      // Drawn at its own size or under a matrix we know nothing about
+      width = 0;
+      height = 0;
+    }
+    ((ScalingMessageCallable<T>) callable).setTargetSize(Math.round(width * zoom),
+        Math.round(height * zoom), scaleType == ScaleType.CENTER_CROP
+            || scaleType == ScaleType.FIT_XY);
   }
 
   @Override
@@ -70,23 +200,121 @@ public class RosImageView<T> extends ImageView implements NodeMain {
 
   @Override
   public void onStart(Node node) {
-    Subscriber<T> subscriber = node.newSubscriber(topicName, messageType);
-    subscriber.addMessageListener(new MessageListener<T>() {
+    synchronized (this) {
+      this.node = node;
+      subscribe();
+    }
+    startDecoder();
+  }
+
+  private synchronized void subscribe() {
+    if (subscriber != null) {
+      subscriber.shutdown();
+    }
+    frameStats.reset();
+    subscriber = node.newSubscriber(topicName, messageType);
+    subscriber.addMessageListener(frameListener);
+  }
+
+  private synchronized void startDecoder() {
+    if (decodeThread != null) {
+      return;
+    }
+    decodeThread = new Thread(new Runnable() {
       @Override
-      public void onNewMessage(final T message) {
-        post(new Runnable() {
-          @Override
-          public void run() {
-            setImageBitmap(callable.call(message));
+      public void run() {
+        // Slightly below the UI thread so decoding never delays touch input
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LESS_FAVORABLE);
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            decode(takeFrame());
           }
-        });
-        postInvalidate();
+        } catch (InterruptedException e) {
+        }
+      }
+    }, "RosImageView decoder");
+    decodeThread.start();
+  }
+
+  private synchronized void stopDecoder() {
+    if (decodeThread != null) {
+      decodeThread.interrupt();
+      decodeThread = null;
+    }
+    synchronized (frameLock) {
+      pendingFrame = null;
+    }
+  }
+
+  private T takeFrame() throws InterruptedException {
+    synchronized (frameLock) {
+      while (pendingFrame == null) {
+        frameLock.wait();
+      }
+      T message = pendingFrame;
+      pendingFrame = null;
+      return message;
+    }
+  }
+
+  private void decode(T message) {
+    long start = System.nanoTime();
+    Bitmap bitmap;
+    try {
+      bitmap = callable.call(message);
+    } catch (RuntimeException e) {
+      // A corrupt or unsupported frame must not end the decode thread
+      frameStats.frameDropped();
+      logFailure(e);
+      return;
+    }
+    if (bitmap == null) {
+      frameStats.frameDropped();
+      return;
+    }
+    frameStats.frameDecoded(System.nanoTime() - start);
+    Bitmap dropped;
+    synchronized (frameLock) {
+      // A decoded frame the UI has not picked up yet is simply replaced
+      dropped = decodedFrame;
+      decodedFrame = bitmap;
+      if (!swapPosted) {
+        swapPosted = true;
+        post(swapFrame);
       }
-    });
+    }
+    if (dropped != null) {
+      frameStats.frameDropped();
+      recycle(dropped);
+    }
+  }
+
+  private void logFailure(RuntimeException e) {
+    failuresSinceLog++;
+    long now = System.nanoTime();
+    if (lastFailureLogNanos != 0 && now - lastFailureLogNanos < FAILURE_LOG_INTERVAL_NANOS) {
+      return;
+    }
+    Log.e(TAG, "Failed to decode frame (" + failuresSinceLog + " since last report)", e);
+    lastFailureLogNanos = now;
+    failuresSinceLog = 0;
+  }
+
+  // Hands a bitmap that is no longer shown back to the converter
+  @SuppressWarnings("unchecked")
+  private void recycle(Bitmap bitmap) {
+    if (bitmap != null && callable instanceof RecyclingMessageCallable) {
+      ((RecyclingMessageCallable<T>) callable).recycle(bitmap);
+    }
   }
 
   @Override
   public void onShutdown(Node node) {
+    synchronized (this) {
+      this.node = null;
+      subscriber = null;
+    }
+    stopDecoder();
   }
 
   @Override
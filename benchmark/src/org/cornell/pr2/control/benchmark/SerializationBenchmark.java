@@ -0,0 +1,61 @@
+package org.cornell.pr2.control.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.PR2Control;
+import org.cornell.pr2.control.ROSNodeWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ros.message.geometry_msgs.Twist;
+import org.ros.message.trajectory_msgs.JointTrajectory;
+
+/**
+ * rosjava serialization of the commands the publishers send.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+	private Twist twist;
+	private JointTrajectory trajectory;
+
+	@Setup
+	public void setUp() {
+		ROSNodeWrapper node = new ROSNodeWrapper();
+		PR2Control control = new PR2Control(node);
+		long now = System.nanoTime();
+		// The head streamer waits for a measured position
+		node.headStateReceived(0, 0);
+
+		control.sendMessage(Common.STICK.RIGHT, Common.BODY_PART.BODY, 5, 7);
+		control.getBaseShaper().run(now);
+		twist = node.getBaseCommand().latest();
+
+		control.sendMessage(Common.STICK.RIGHT, Common.BODY_PART.HEAD, 5, 7);
+		control.getHeadStreamer().run(now);
+		trajectory = node.getHeadCommand().latest();
+	}
+
+	@Benchmark
+	public ByteBuffer serializeTwist() {
+		return twist.serialize(0);
+	}
+
+	@Benchmark
+	public ByteBuffer serializeJointTrajectory() {
+		return trajectory.serialize(0);
+	}
+}
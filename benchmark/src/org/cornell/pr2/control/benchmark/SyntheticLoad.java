@@ -0,0 +1,132 @@
+package org.cornell.pr2.control.benchmark;
+
+import java.net.URI;
+
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.PR2Control;
+import org.cornell.pr2.control.ROSNodeWrapper;
+import org.cornell.pr2.control.input.SyntheticInputSource;
+import org.ros.RosCore;
+import org.ros.message.sensor_msgs.JointState;
+import org.ros.namespace.GraphName;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.Node;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.topic.Publisher;
+
+/**
+ * Drives both sticks of a {@link PR2Control} from synthetic sources and
+ * prints the latency summary, so the whole pipeline from the mailbox through
+ * the command builders to serialization and publishing can be loaded well
+ * past touchscreen rates.
+ *
+ * Usage: SyntheticLoad [rate in Hz, default 1000] [seconds, default 10]
+ *
+ * A private master and the {@link ROSNodeWrapper} run in-process on
+ * localhost. A stand-in robot publishes joint states, so the watchdog's link
+ * check and the head streamer see the feedback they expect and the watchdog
+ * stays armed for the whole run.
+ */
+public class SyntheticLoad {
+	private static final long feedbackTimeoutMillis = 10000;
+
+	/**
+	 * Publishes the head joints at the PR2's joint state rate.
+	 */
+	private static class FakeRobot implements NodeMain {
+		private volatile Thread thread;
+
+		@Override
+		public GraphName getDefaultNodeName() {
+			return new GraphName("pr2_control/fake_robot");
+		}
+
+		@Override
+		public void onStart(Node node) {
+			final Publisher<JointState> publisher = node.newPublisher(
+					ROSNodeWrapper.jointStateTopic, "sensor_msgs/JointState");
+			final JointState state = new JointState();
+			state.name.add(ROSNodeWrapper.headPanTopic);
+			state.name.add(ROSNodeWrapper.headTiltTopic);
+			state.position = new double[2];
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!Thread.currentThread().isInterrupted()) {
+							publisher.publish(state);
+							Thread.sleep(10);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			}, "FakeRobot");
+			thread.start();
+		}
+
+		@Override
+		public void onShutdown(Node node) {
+			Thread t = thread;
+			if (t != null) {
+				t.interrupt();
+			}
+		}
+
+		@Override
+		public void onShutdownComplete(Node node) {
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		double rate = args.length > 0 ? Double.parseDouble(args[0])
+				: SyntheticInputSource.maxRate;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 10;
+
+		RosCore rosCore = RosCore.newPrivate();
+		rosCore.start();
+		rosCore.awaitStart();
+		URI masterUri = rosCore.getUri();
+		NodeMainExecutor executor = DefaultNodeMainExecutor.newDefault();
+
+		ROSNodeWrapper node = new ROSNodeWrapper();
+		executor.execute(new FakeRobot(), NodeConfiguration
+				.newPrivate(masterUri).setNodeName("pr2_control/fake_robot"));
+		executor.execute(node, NodeConfiguration.newPrivate(masterUri)
+				.setNodeName("pr2_control/joystick_view"));
+		long deadline = System.currentTimeMillis() + feedbackTimeoutMillis;
+		while (node.getLastFeedbackNanos() == 0) {
+			if (System.currentTimeMillis() > deadline) {
+				System.err.println("no joint states from the fake robot");
+				executor.shutdown();
+				rosCore.shutdown();
+				System.exit(1);
+			}
+			Thread.sleep(10);
+		}
+
+		PR2Control control = new PR2Control(node);
+		control.start();
+
+		SyntheticInputSource left = new SyntheticInputSource(
+				Common.STICK.LEFT, SyntheticInputSource.circle(
+						(float) PR2Control.stickRange, 2), rate);
+		SyntheticInputSource right = new SyntheticInputSource(
+				Common.STICK.RIGHT, SyntheticInputSource.circle(
+						(float) PR2Control.stickRange / 2, 3), rate);
+		left.start(control);
+		right.start(control);
+		Thread.sleep(seconds * 1000);
+		left.stop();
+		right.stop();
+		node.stop();
+		executor.shutdown();
+		rosCore.shutdown();
+
+		System.out.println(node.getLatencyTracker().summary());
+		if (control.getWatchdog().isTripped()) {
+			System.out.println("watchdog tripped during the run");
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.cornell.pr2.control.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.PR2Control;
+import org.cornell.pr2.control.ROSNodeWrapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ros.message.geometry_msgs.Twist;
+import org.ros.message.trajectory_msgs.JointTrajectory;
+
+/**
+ * Command construction and serialization on the teleop hot path.
+ *
+ * Nothing is registered with the publish scheduler, so each benchmark runs
+ * one stage directly on the benchmark thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TeleopBenchmark {
+	private ROSNodeWrapper node;
+	private PR2Control control;
+	private int tick;
+	private long now;
+
+	@Setup
+	public void setUp() {
+		node = new ROSNodeWrapper();
+		control = new PR2Control(node);
+		now = System.nanoTime();
+		// The head streamer waits for a measured position
+		node.headStateReceived(0, 0);
+	}
+
+	// Sweeps the stick across its whole range so values keep changing
+	private int nextSlide() {
+		tick = (tick + 1) % 21;
+		return tick - 10;
+	}
+
+	@Benchmark
+	public void postMessage() {
+		control.postMessage(Common.STICK.RIGHT, nextSlide(), nextSlide(),
+				now);
+	}
+
+	@Benchmark
+	public void sendBodyMessage() {
+		control.sendMessage(Common.STICK.RIGHT, Common.BODY_PART.BODY,
+				nextSlide(), nextSlide());
+	}
+
+	@Benchmark
+	public void sendHeadMessage() {
+		control.sendMessage(Common.STICK.RIGHT, Common.BODY_PART.HEAD,
+				nextSlide(), nextSlide());
+	}
+
+	@Benchmark
+	public Twist buildBaseCommand() {
+		control.sendMessage(Common.STICK.RIGHT, Common.BODY_PART.BODY,
+				nextSlide(), nextSlide());
+		now += 20000000;
+		control.getBaseShaper().run(now);
+		return node.getBaseCommand().latest();
+	}
+
+	@Benchmark
+	public JointTrajectory buildHeadCommand() {
+		// An odd pan keeps the streamer moving so every run builds points
+		control.sendMessage(Common.STICK.RIGHT, Common.BODY_PART.HEAD,
+				nextSlide() | 1, nextSlide());
+		now += 200000000;
+		control.getHeadStreamer().run(now);
+		return node.getHeadCommand().latest();
+	}
+}
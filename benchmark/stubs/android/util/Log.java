@@ -0,0 +1,38 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger so the command path can run on a plain
+ * JVM. Every call is dropped.
+ */
+public final class Log {
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg) {
+		return 0;
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+}
@@ -1,26 +1,15 @@
-#include <ros/publisher.h>
 #include <ros/subscriber.h>
 #include <ros/node_handle.h>
 #include <sensor_msgs/Image.h>
+#include <image_transport/image_transport.h>
 #include <cv_bridge/CvBridge.h>
 #include <opencv/cv.h>
-std::map<std::string, ros::Publisher> mPublishers;
+// Published through image_transport so that /wide_stereo/resize/compressed
+// carries the same message type as the full size stream; the app switches
+// between the two depending on how well frames get through.
+image_transport::Publisher resizePub;
 ros::Subscriber imgSub;
 sensor_msgs::CvBridge bridge;
-template <class msg_type>
-ros::Publisher getPublisher(const std::string& topic)
-{
-
-  if (mPublishers.find(topic) == mPublishers.end())
-  {
-    std::ostringstream ostr;
-    ostr << "/" << "wide_stereo" << "/" << topic;
-    ros::NodeHandle mNh;
-    mPublishers[topic] = mNh.advertise<msg_type> (ostr.str(), 0, true);
-  }
-
-  return mPublishers[topic];
-}
 
 void cb(const sensor_msgs::ImageConstPtr& image_msg)
 {
@@ -29,9 +18,10 @@ void cb(const sensor_msgs::ImageConstPtr& image_msg)
   
   cvResize(imgSrc,imgDest,CV_INTER_LINEAR);
   
-  ros::Publisher pub = getPublisher<sensor_msgs::Image>("resize");
-  pub.publish(bridge.cvToImgMsg(imgDest,"bgr8"));
- 
+  sensor_msgs::ImagePtr resized = bridge.cvToImgMsg(imgDest,"bgr8");
+  resized->header = image_msg->header;
+  resizePub.publish(resized);
+  cvReleaseImage(&imgDest);
 }
 
 
@@ -42,7 +32,10 @@ int main (int argc, char** argv)
 
   ros::NodeHandle nh;
 
-  imgSub = nh.subscribe("/wide_stereo/right/image_color", 1, cb);
+  image_transport::ImageTransport it(nh);
+  resizePub = it.advertise("/wide_stereo/resize", 1);
+  // Same camera as the full size stream shown by the app
+  imgSub = nh.subscribe("/wide_stereo/left/image_color", 1, cb);
 
   std::cout << "ready!" << std::endl;
 
@@ -0,0 +1,203 @@
+package org.cornell.pr2.control;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.ros.android.views.FrameStats;
+import org.ros.android.views.RosImageView;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Switches a {@link RosImageView} between the full size camera stream and
+ * the resized one depending on how well frames get through.
+ *
+ * Once a second the view's {@link FrameStats} window is checked. A window is
+ * bad when too many frames are dropped, arrivals jitter too much, or decoding
+ * takes most of the frame interval. Several bad windows in a row switch to
+ * the resized stream; a longer run of good ones switches back. After every
+ * switch the controller waits {@link #minDwellMillis} before it judges the
+ * new stream, so a short burst of congestion cannot make it flap.
+ *
+ * A window without any frames is not a congestion signal (the camera may be
+ * off or not started yet) and never causes a degrade. If the resized stream
+ * stays silent after a switch, the controller goes back to the full one and
+ * does not try the resized stream again for {@link #silentBackoffMillis},
+ * doubling each time it is still silent, until it has delivered a frame.
+ *
+ * Good windows on the resized stream say little about whether the full one
+ * would fit, so an upgrade that degrades again within
+ * {@link #failedUpgradeMillis} doubles the number of good windows needed for
+ * the next one, up to {@link #maxUpgradeWindows}; an upgrade that holds
+ * resets it. Runs on the UI thread; the resubscription itself talks to the
+ * master and is handed to a worker thread.
+ */
+public class AdaptiveStreamController {
+	private static final String TAG = "AdaptiveStream";
+
+	public static final long pollMillis = 1000;
+	public static final long minDwellMillis = 5000;
+	public static final int degradeWindows = 3;
+	public static final int upgradeWindows = 10;
+	public static final int maxUpgradeWindows = 320;
+	public static final long failedUpgradeMillis = 30000;
+	public static final long silentBackoffMillis = 30000;
+	public static final long maxSilentBackoffMillis = 960000;
+	public static final double maxDropRate = 0.2;
+	public static final double maxJitterMillis = 80;
+	// Decoding may use at most this fraction of the frame interval
+	public static final double maxDecodeShare = 0.6;
+
+	private final RosImageView<?> view;
+	private final String fullTopic;
+	private final String resizedTopic;
+	private final Handler handler = new Handler();
+	private final FrameStats.Window window = new FrameStats.Window();
+	private final ExecutorService switcher = Executors
+			.newSingleThreadExecutor();
+
+	private boolean enabled = true;
+	private boolean running;
+	private boolean resized;
+	private long switchedMillis;
+	private int badWindows;
+	private int goodWindows;
+	private int upgradeAfter = upgradeWindows;
+	// When the last upgrade happened, or 0 once it has held
+	private long upgradedMillis;
+	// Degrading is held off until then after the resized stream was silent
+	private long degradeBlockedUntil;
+	private long silentBackoff = silentBackoffMillis;
+
+	private final Runnable poll = new Runnable() {
+		@Override
+		public void run() {
+			check();
+			handler.postDelayed(this, pollMillis);
+		}
+	};
+
+	public AdaptiveStreamController(RosImageView<?> view, String fullTopic,
+			String resizedTopic) {
+		this.view = view;
+		this.fullTopic = fullTopic;
+		this.resizedTopic = resizedTopic;
+	}
+
+	public void start() {
+		stop();
+		running = true;
+		switchedMillis = SystemClock.uptimeMillis();
+		badWindows = 0;
+		goodWindows = 0;
+		view.getFrameStats().takeWindow(window);
+		handler.postDelayed(poll, pollMillis);
+	}
+
+	public void stop() {
+		running = false;
+		handler.removeCallbacks(poll);
+	}
+
+	/**
+	 * Stops polling for good; the controller cannot be restarted.
+	 */
+	public void shutdown() {
+		stop();
+		switcher.shutdown();
+	}
+
+	/**
+	 * When disabled the full size stream is shown and never left.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled && resized) {
+			select(false);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public boolean isResized() {
+		return resized;
+	}
+
+	private void check() {
+		view.getFrameStats().takeWindow(window);
+		if (!enabled) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		if (upgradedMillis != 0 && now - upgradedMillis >= failedUpgradeMillis) {
+			upgradeAfter = upgradeWindows;
+			upgradedMillis = 0;
+		}
+		if (now - switchedMillis < minDwellMillis) {
+			return;
+		}
+		if (window.arrived == 0) {
+			if (resized && ++badWindows >= degradeWindows) {
+				// The resized stream is not published at all
+				Log.i(TAG, "resized stream is silent, returning to full size for "
+						+ silentBackoff / 1000 + " s");
+				degradeBlockedUntil = now + silentBackoff;
+				silentBackoff = Math.min(2 * silentBackoff, maxSilentBackoffMillis);
+				select(false);
+			}
+			return;
+		}
+		if (resized) {
+			silentBackoff = silentBackoffMillis;
+		}
+		if (isBad(window)) {
+			goodWindows = 0;
+			if (++badWindows >= degradeWindows && !resized
+					&& now - degradeBlockedUntil >= 0) {
+				if (upgradedMillis != 0) {
+					upgradeAfter = Math.min(2 * upgradeAfter, maxUpgradeWindows);
+					upgradedMillis = 0;
+				}
+				Log.i(TAG, "degrading: drops " + window.dropped + "/"
+						+ window.arrived + ", jitter " + window.jitterMillis
+						+ " ms, decode " + window.meanDecodeMillis + " ms");
+				select(true);
+			}
+		} else {
+			badWindows = 0;
+			if (++goodWindows >= upgradeAfter && resized) {
+				Log.i(TAG, "upgrading after " + goodWindows + " good windows");
+				upgradedMillis = now;
+				select(false);
+			}
+		}
+	}
+
+	private static boolean isBad(FrameStats.Window w) {
+		return w.dropRate() > maxDropRate
+				|| w.jitterMillis > maxJitterMillis
+				|| (w.meanIntervalMillis > 0 && w.meanDecodeMillis > maxDecodeShare
+						* w.meanIntervalMillis);
+	}
+
+	private void select(boolean resized) {
+		this.resized = resized;
+		final String topic = resized ? resizedTopic : fullTopic;
+		switcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				view.setTopicName(topic);
+			}
+		});
+		switchedMillis = SystemClock.uptimeMillis();
+		badWindows = 0;
+		goodWindows = 0;
+		if (running) {
+			view.getFrameStats().takeWindow(window);
+		}
+	}
+}
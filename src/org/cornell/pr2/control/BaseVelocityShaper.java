@@ -0,0 +1,116 @@
+package org.cornell.pr2.control;
+
+import org.ros.message.geometry_msgs.Twist;
+
+/**
+ * Turns sparse joystick targets into a smooth, fixed-rate stream of base
+ * {@link Twist} commands.
+ *
+ * Each of the base's planar axes (x, y, yaw) runs through its own
+ * {@link VelocityRamp}. While any axis is still moving toward its target the
+ * shaper runs on the {@link PublishScheduler} at the output rate and sends a
+ * new command every step; once everything has settled it sleeps until the
+ * next target arrives. All methods must be called on the scheduler thread.
+ */
+public class BaseVelocityShaper implements PublishScheduler.Task {
+	public static final double defaultRate = 50;
+	public static final double defaultLinearAccel = 1.0;
+	public static final double defaultLinearJerk = 5.0;
+	public static final double defaultAngularAccel = 2.0;
+	public static final double defaultAngularJerk = 10.0;
+
+	private final ROSNodeWrapper node;
+	private final VelocityRamp x = new VelocityRamp(defaultLinearAccel,
+			defaultLinearJerk);
+	private final VelocityRamp y = new VelocityRamp(defaultLinearAccel,
+			defaultLinearJerk);
+	private final VelocityRamp yaw = new VelocityRamp(defaultAngularAccel,
+			defaultAngularJerk);
+
+	private volatile long periodNanos = (long) (1e9 / defaultRate);
+	private long lastStepNanos;
+	private PublishScheduler.Handle handle;
+
+	public BaseVelocityShaper(ROSNodeWrapper node) {
+		this.node = node;
+	}
+
+	public void start(PublishScheduler scheduler) {
+		stop();
+		handle = scheduler.register(this);
+	}
+
+	public void stop() {
+		if (handle != null) {
+			handle.unregister();
+			handle = null;
+		}
+	}
+
+	public void setRate(double rate) {
+		periodNanos = (long) (1e9 / rate);
+	}
+
+	public double getRate() {
+		return 1e9 / periodNanos;
+	}
+
+	public void setLinearLimits(double maxAccel, double maxJerk) {
+		x.setLimits(maxAccel, maxJerk);
+		y.setLimits(maxAccel, maxJerk);
+	}
+
+	public void setAngularLimits(double maxAccel, double maxJerk) {
+		yaw.setLimits(maxAccel, maxJerk);
+	}
+
+	public void setTarget(double linearX, double linearY, double angularZ) {
+		x.setTarget(linearX);
+		y.setTarget(linearY);
+		yaw.setTarget(angularZ);
+		if (handle != null) {
+			handle.wake();
+		}
+	}
+
+	/**
+	 * Drops all axes to zero at once, bypassing the limits.
+	 */
+	public void reset() {
+		x.reset(0);
+		y.reset(0);
+		yaw.reset(0);
+	}
+
+	public boolean isMoving() {
+		return x.getTarget() != 0 || y.getTarget() != 0
+				|| yaw.getTarget() != 0 || x.getVelocity() != 0
+				|| y.getVelocity() != 0 || yaw.getVelocity() != 0;
+	}
+
+	@Override
+	public long run(long nowNanos) {
+		if (x.isSettled() && y.isSettled() && yaw.isSettled()) {
+			lastStepNanos = 0;
+			return -1;
+		}
+		long period = periodNanos;
+		// After sleeping, take a single period-long step rather than one
+		// covering the whole idle time.
+		double dt = (lastStepNanos == 0 ? period : Math.min(nowNanos
+				- lastStepNanos, 4 * period)) / 1e9;
+		lastStepNanos = nowNanos;
+
+		CommandBuffer<Twist> baseCommand = node.getBaseCommand();
+		Twist twist = baseCommand.edit();
+		twist.linear.x = x.step(dt);
+		twist.linear.y = y.step(dt);
+		twist.linear.z = 0;
+		twist.angular.x = 0;
+		twist.angular.y = 0;
+		twist.angular.z = yaw.step(dt);
+		baseCommand.commit();
+		node.baseCommandChanged();
+		return period;
+	}
+}
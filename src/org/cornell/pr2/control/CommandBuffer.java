@@ -0,0 +1,72 @@
+package org.cornell.pr2.control;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer that hands a complete command from one writer
+ * thread to one publishing thread.
+ *
+ * The writer fills the message returned by {@link #edit()} and then calls
+ * {@link #commit()}. The reader calls {@link #latest()} and gets the newest
+ * committed message, which the writer will not touch again until the reader
+ * has moved on to a newer one. Neither side ever sees a half-written command.
+ *
+ * Since the buffer handed out by {@link #edit()} may still hold an older
+ * command, writers must set every field they care about.
+ */
+public class CommandBuffer<T> {
+	// state layout: bits 0-1 back, bits 2-3 middle, bits 4-5 front index,
+	// bit 6 set when the middle buffer holds a commit the reader has not seen.
+	private static final int FRESH = 1 << 6;
+
+	private final Object[] buffers;
+	private final AtomicInteger state = new AtomicInteger(0 | (1 << 2)
+			| (2 << 4));
+
+	public CommandBuffer(T first, T second, T third) {
+		buffers = new Object[] { first, second, third };
+	}
+
+	/**
+	 * @return the writer's private message to fill in
+	 */
+	@SuppressWarnings("unchecked")
+	public T edit() {
+		return (T) buffers[state.get() & 3];
+	}
+
+	/**
+	 * Publishes the message returned by {@link #edit()} to the reader.
+	 */
+	public void commit() {
+		while (true) {
+			int s = state.get();
+			int back = s & 3;
+			int middle = (s >> 2) & 3;
+			int next = (s & (3 << 4)) | FRESH | (back << 2) | middle;
+			if (state.compareAndSet(s, next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the most recently committed message; it stays untouched until
+	 *         the next call to this method
+	 */
+	@SuppressWarnings("unchecked")
+	public T latest() {
+		while (true) {
+			int s = state.get();
+			if ((s & FRESH) == 0) {
+				return (T) buffers[(s >> 4) & 3];
+			}
+			int middle = (s >> 2) & 3;
+			int front = (s >> 4) & 3;
+			int next = (s & 3) | (front << 2) | (middle << 4);
+			if (state.compareAndSet(s, next)) {
+				return (T) buffers[middle];
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.cornell.pr2.control;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latest-value-wins handoff between the joystick listeners and
+ * {@link PR2Control}.
+ *
+ * The touch thread only stores the newest stick position in the slot for
+ * its stick and body part; any burst of moves before the next drain
+ * collapses into one command. Draining happens on the shared
+ * {@link PublishScheduler}, so the touch thread never waits on message
+ * building or serialization.
+ *
+ * Each post is stamped with a sequence number and its touch and enqueue
+ * times for the {@link LatencyTracker}, which only hears about commands that
+ * were actually applied. The stamps are stored next to the value rather
+ * than atomically with it, which is good enough for telemetry.
+ */
+public class CommandMailbox implements PublishScheduler.Task {
+	private static final int PARTS = Common.BODY_PART.values().length;
+	private static final Common.STICK[] STICKS = Common.STICK.values();
+	private static final Common.BODY_PART[] BODY_PARTS = Common.BODY_PART
+			.values();
+
+	private final PR2Control control;
+	private final CommandWatchdog watchdog;
+	private final AtomicLongArray slots = new AtomicLongArray(STICKS.length
+			* PARTS);
+	private final AtomicIntegerArray seqs = new AtomicIntegerArray(
+			STICKS.length * PARTS);
+	private final AtomicLongArray touchNanos = new AtomicLongArray(
+			STICKS.length * PARTS);
+	private final AtomicLongArray enqueueNanos = new AtomicLongArray(
+			STICKS.length * PARTS);
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicInteger nextSeq = new AtomicInteger();
+	private final LatencyTracker latencyTracker;
+
+	private volatile PublishScheduler.Handle handle;
+
+	public CommandMailbox(PR2Control control, CommandWatchdog watchdog,
+			LatencyTracker latencyTracker) {
+		this.control = control;
+		this.watchdog = watchdog;
+		this.latencyTracker = latencyTracker;
+	}
+
+	public void start(PublishScheduler scheduler) {
+		stop();
+		handle = scheduler.register(this);
+	}
+
+	public void stop() {
+		PublishScheduler.Handle h = handle;
+		if (h != null) {
+			h.unregister();
+			handle = null;
+		}
+	}
+
+	/**
+	 * Stores the newest position of {@code stick} for the currently active
+	 * body part, replacing any value that has not been drained yet. Both
+	 * axes are packed into one long so they are always read together.
+	 * 
+	 * @param touchNanos
+	 *            {@link System#nanoTime()} of the touch that produced this
+	 *            position, or 0 if it is a repeat of a held stick
+	 */
+	public void post(Common.STICK stick, float vSlide, float hSlide,
+			long touchNanos) {
+		long now = System.nanoTime();
+		watchdog.inputReceived();
+		int slot = stick.ordinal() * PARTS
+				+ control.getActiveBodyPart().ordinal();
+		slots.set(slot, ((long) Float.floatToIntBits(vSlide) << 32)
+				| (Float.floatToIntBits(hSlide) & 0xffffffffL));
+		seqs.set(slot, nextSeq.incrementAndGet());
+		this.touchNanos.set(slot, touchNanos);
+		enqueueNanos.set(slot, now);
+		int bit = 1 << slot;
+		while (true) {
+			int mask = pending.get();
+			if ((mask & bit) != 0) {
+				return;
+			}
+			if (pending.compareAndSet(mask, mask | bit)) {
+				PublishScheduler.Handle h = handle;
+				if (mask == 0 && h != null) {
+					h.wake();
+				}
+				return;
+			}
+		}
+	}
+
+	@Override
+	public long run(long nowNanos) {
+		int mask = pending.getAndSet(0);
+		while (mask != 0) {
+			int slot = Integer.numberOfTrailingZeros(mask);
+			mask &= mask - 1;
+			Common.BODY_PART part = BODY_PARTS[slot % PARTS];
+			// Posted just before a switch; that part no longer follows the
+			// sticks and has been stopped
+			if (part != control.getActiveBodyPart()) {
+				continue;
+			}
+			long value = slots.get(slot);
+			// Commands dropped by a tripped watchdog never get published
+			if (!control.sendMessage(STICKS[slot / PARTS], part,
+					Float.intBitsToFloat((int) (value >> 32)),
+					Float.intBitsToFloat((int) value))) {
+				continue;
+			}
+			latencyTracker.inputApplied(
+					part == Common.BODY_PART.HEAD ? LatencyTracker.HEAD
+							: LatencyTracker.BASE, seqs.get(slot),
+					touchNanos.get(slot), enqueueNanos.get(slot));
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,118 @@
+package org.cornell.pr2.control;
+
+import org.ros.message.Message;
+import org.ros.node.topic.Publisher;
+
+import android.util.Log;
+
+/**
+ * Publishes a command message as soon as it changes and re-sends it at a
+ * slower keepalive rate while nothing changes.
+ *
+ * The max rate bounds how often change-triggered sends go out; a change that
+ * arrives sooner is held until the interval has elapsed, so the newest value
+ * is always the one sent. Sends run on the shared {@link PublishScheduler}
+ * and always serialize a complete snapshot taken from the
+ * {@link CommandBuffer}.
+ */
+public class CommandPublisher<T extends Message> implements
+		PublishScheduler.Task {
+	private static final String TAG = "CommandPublisher";
+
+	private final Publisher<T> publisher;
+	private final CommandBuffer<T> command;
+	private final LatencyTracker latencyTracker;
+	private final int latencyTopic;
+
+	private volatile long minIntervalNanos;
+	private volatile long keepaliveNanos;
+	private volatile boolean changed;
+	private volatile long lastPublishNanos;
+	private volatile long lastSuccessNanos;
+
+	private PublishScheduler.Handle handle;
+
+	/**
+	 * @param latencyTopic
+	 *            topic id passed to {@link LatencyTracker#published}
+	 * @param maxRate
+	 *            upper bound on change-triggered sends, in Hz
+	 * @param keepaliveRate
+	 *            rate at which an unchanged command is re-sent, in Hz
+	 */
+	public CommandPublisher(Publisher<T> publisher, CommandBuffer<T> command,
+			LatencyTracker latencyTracker, int latencyTopic, double maxRate,
+			double keepaliveRate) {
+		this.publisher = publisher;
+		this.command = command;
+		this.latencyTracker = latencyTracker;
+		this.latencyTopic = latencyTopic;
+		setRates(maxRate, keepaliveRate);
+	}
+
+	public void setRates(double maxRate, double keepaliveRate) {
+		minIntervalNanos = (long) (1e9 / maxRate);
+		keepaliveNanos = (long) (1e9 / keepaliveRate);
+		PublishScheduler.Handle h = handle;
+		if (h != null) {
+			h.wakeAt(lastPublishNanos + keepaliveNanos);
+		}
+	}
+
+	public double getMaxRate() {
+		return 1e9 / minIntervalNanos;
+	}
+
+	public double getKeepaliveRate() {
+		return 1e9 / keepaliveNanos;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} of the last send that did not throw,
+	 *         or 0 if nothing was sent yet. A send only queues the message,
+	 *         so this says nothing about delivery.
+	 */
+	public long getLastSuccessNanos() {
+		return lastSuccessNanos;
+	}
+
+	/**
+	 * Signals that the command message was updated and should go out now.
+	 */
+	public void commandChanged() {
+		changed = true;
+		PublishScheduler.Handle h = handle;
+		if (h != null) {
+			h.wakeAt(lastPublishNanos + minIntervalNanos);
+		}
+	}
+
+	public void start(PublishScheduler scheduler) {
+		handle = scheduler.register(this);
+	}
+
+	public void stop() {
+		if (handle != null) {
+			handle.unregister();
+			handle = null;
+		}
+	}
+
+	@Override
+	public long run(long nowNanos) {
+		long remaining = lastPublishNanos + minIntervalNanos - nowNanos;
+		if (changed && remaining > 0 && lastPublishNanos != 0) {
+			return remaining;
+		}
+		changed = false;
+		lastPublishNanos = nowNanos;
+		try {
+			publisher.publish(command.latest());
+			lastSuccessNanos = nowNanos;
+			latencyTracker.published(latencyTopic, System.nanoTime());
+		} catch (RuntimeException e) {
+			Log.e(TAG, "publish failed", e);
+		}
+		return keepaliveNanos;
+	}
+}
@@ -0,0 +1,165 @@
+package org.cornell.pr2.control;
+
+import android.util.Log;
+
+/**
+ * Deadman switch for the base: stops the robot when joystick input, base
+ * publishing or the link to the robot stalls while a non-zero velocity is
+ * being commanded.
+ *
+ * Input freshness is refreshed by every posted joystick move (including the
+ * held-stick repeats) and publish freshness by every base send that did not
+ * throw. A send only queues the message, so publish freshness catches a dead
+ * scheduler thread or publisher but not a dead network; the link is judged
+ * by robot feedback instead, i.e. how long ago the last joint state arrived
+ * (see {@link ROSNodeWrapper#getLastFeedbackNanos}). Everything is tracked
+ * on {@link System#nanoTime()} so wall clock changes cannot trip or mask it.
+ * The check runs on the shared {@link PublishScheduler}.
+ */
+public class CommandWatchdog implements PublishScheduler.Task {
+	private static final String TAG = "CommandWatchdog";
+
+	public static final long defaultTimeoutMillis = 1500;
+
+	public enum Reason {
+		INPUT_STALLED, PUBLISH_STALLED, LINK_STALLED
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the scheduler thread after the base was stopped.
+		 */
+		void onWatchdogTripped(Reason reason);
+
+		/**
+		 * Called on the scheduler thread once fresh input arrives again.
+		 */
+		void onWatchdogCleared();
+	}
+
+	private final PR2Control control;
+	private final ROSNodeWrapper node;
+
+	private volatile long timeoutNanos = defaultTimeoutMillis * 1000000;
+	private volatile long lastInputNanos;
+	private volatile boolean tripped;
+	private Reason trippedReason;
+	private long trippedNanos;
+	private long trippedInputNanos;
+	private long startNanos;
+	private volatile Listener listener;
+
+	private PublishScheduler.Handle handle;
+
+	public CommandWatchdog(PR2Control control, ROSNodeWrapper node) {
+		this.control = control;
+		this.node = node;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void setTimeoutMillis(long timeoutMillis) {
+		timeoutNanos = timeoutMillis * 1000000;
+		PublishScheduler.Handle h = handle;
+		if (h != null) {
+			h.wake();
+		}
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutNanos / 1000000;
+	}
+
+	public void start(PublishScheduler scheduler) {
+		stop();
+		lastInputNanos = System.nanoTime();
+		startNanos = lastInputNanos;
+		handle = scheduler.register(this);
+	}
+
+	public void stop() {
+		if (handle != null) {
+			handle.unregister();
+			handle = null;
+		}
+	}
+
+	/**
+	 * Marks joystick input as fresh. Safe to call from the touch thread.
+	 */
+	public void inputReceived() {
+		lastInputNanos = System.nanoTime();
+	}
+
+	/**
+	 * While tripped, base commands are dropped so that nothing but the zero
+	 * command goes out until the watchdog clears.
+	 */
+	public boolean isTripped() {
+		return tripped;
+	}
+
+	@Override
+	public long run(long nowNanos) {
+		long timeout = timeoutNanos;
+		long input = lastInputNanos;
+		if (tripped) {
+			// Input stalls clear on the next move; publish stalls also need
+			// the zero command to have gone out and link stalls fresh
+			// feedback from the robot.
+			if (input != trippedInputNanos && isRecovered(trippedReason)) {
+				tripped = false;
+				Log.i(TAG, "cleared");
+				Listener l = listener;
+				if (l != null) {
+					l.onWatchdogCleared();
+				}
+			}
+		} else if (control.isBaseMoving()) {
+			Reason reason = null;
+			if (nowNanos - input > timeout) {
+				reason = Reason.INPUT_STALLED;
+			} else if (nowNanos - node.getLastBasePublishNanos() > timeout) {
+				reason = Reason.PUBLISH_STALLED;
+			} else if (nowNanos - feedbackNanos() > timeout) {
+				reason = Reason.LINK_STALLED;
+			}
+			if (reason != null) {
+				trip(reason, nowNanos, input);
+			}
+		}
+		return timeout / 4;
+	}
+
+	private boolean isRecovered(Reason reason) {
+		switch (reason) {
+		case PUBLISH_STALLED:
+			return node.getLastBasePublishNanos() - trippedNanos > 0;
+		case LINK_STALLED:
+			return feedbackNanos() - trippedNanos > 0;
+		default:
+			return true;
+		}
+	}
+
+	// Feedback that never arrived counts from when the watchdog started
+	private long feedbackNanos() {
+		long feedback = node.getLastFeedbackNanos();
+		return feedback != 0 ? feedback : startNanos;
+	}
+
+	private void trip(Reason reason, long nowNanos, long input) {
+		control.stopBase();
+		tripped = true;
+		trippedReason = reason;
+		trippedNanos = nowNanos;
+		trippedInputNanos = input;
+		Log.w(TAG, "stopping base: " + reason);
+		Listener l = listener;
+		if (l != null) {
+			l.onWatchdogTripped(reason);
+		}
+	}
+}
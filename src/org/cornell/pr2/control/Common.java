@@ -2,4 +2,5 @@ package org.cornell.pr2.control;
 
 public class Common {
 	public enum BODY_PART { BODY , HEAD };
+	public enum STICK { LEFT , RIGHT };
 }
@@ -0,0 +1,153 @@
+package org.cornell.pr2.control;
+
+import org.ros.message.trajectory_msgs.JointTrajectory;
+import org.ros.message.trajectory_msgs.JointTrajectoryPoint;
+
+/**
+ * Drives the head from stick rates by streaming short look-ahead
+ * trajectories.
+ *
+ * The stick sets pan and tilt velocities. Every period the streamer advances
+ * its commanded position and sends {@link #POINTS} points spaced one period
+ * apart, each with a time_from_start and the velocity the head should have
+ * there. A new trajectory replaces the previous one before the head reaches
+ * its last point, so the controller keeps moving instead of stopping at
+ * every update; the last point carries zero velocity so the head still
+ * comes to rest if updates stop. Once the stick is centered a single hold
+ * trajectory is sent and the streamer sleeps.
+ *
+ * The commanded position is integrated open loop, so it is seeded from the
+ * measured head position (see {@link ROSNodeWrapper#headStateReceived}) at
+ * the start of every motion, and re-seeded whenever a fresh measurement
+ * shows it drifted more than {@link #maxDriftRadians}. Until a position has
+ * been measured nothing is streamed at all. All methods except
+ * {@link #setRates} run on the {@link PublishScheduler} thread.
+ */
+public class HeadTrajectoryStreamer implements PublishScheduler.Task {
+	public static final int POINTS = 3;
+	public static final double defaultRate = 5;
+	// Well above the tracking lag of the head controller at full speed
+	public static final double maxDriftRadians = 0.3;
+	public static final long maxStateAgeNanos = 500000000;
+
+	private final ROSNodeWrapper node;
+
+	private volatile double panRate;
+	private volatile double tiltRate;
+	private volatile long periodNanos = (long) (1e9 / defaultRate);
+
+	private double pan;
+	private double tilt;
+	private long lastStepNanos;
+	private boolean holding = true;
+	private PublishScheduler.Handle handle;
+
+	public HeadTrajectoryStreamer(ROSNodeWrapper node) {
+		this.node = node;
+	}
+
+	public void start(PublishScheduler scheduler) {
+		stop();
+		handle = scheduler.register(this);
+	}
+
+	public void stop() {
+		if (handle != null) {
+			handle.unregister();
+			handle = null;
+		}
+	}
+
+	/**
+	 * Sets how often a new look-ahead trajectory is sent; the trajectory
+	 * spans {@link #POINTS} of these periods.
+	 */
+	public void setRate(double rate) {
+		periodNanos = (long) (1e9 / rate);
+	}
+
+	public double getRate() {
+		return 1e9 / periodNanos;
+	}
+
+	/**
+	 * @param panRate
+	 *            pan velocity in rad/s, positive to the left
+	 * @param tiltRate
+	 *            tilt velocity in rad/s, positive down
+	 */
+	public void setRates(double panRate, double tiltRate) {
+		boolean wasStill = this.panRate == 0 && this.tiltRate == 0;
+		this.panRate = panRate;
+		this.tiltRate = tiltRate;
+		PublishScheduler.Handle h = handle;
+		if (h != null && (wasStill || (panRate == 0 && tiltRate == 0))) {
+			h.wake();
+		}
+	}
+
+	@Override
+	public long run(long nowNanos) {
+		double panRate = this.panRate;
+		double tiltRate = this.tiltRate;
+		long period = periodNanos;
+		boolean still = panRate == 0 && tiltRate == 0;
+		if (still && holding) {
+			lastStepNanos = 0;
+			return -1;
+		}
+		long stateNanos = node.getHeadStateNanos();
+		if (stateNanos == 0) {
+			// Never stream around a guessed position; retry until one arrives
+			lastStepNanos = 0;
+			return still ? -1 : period;
+		}
+		if (lastStepNanos != 0) {
+			double dt = Math.min(nowNanos - lastStepNanos, 2 * period) / 1e9;
+			pan = clampPan(pan + panRate * dt);
+			tilt = clampTilt(tilt + tiltRate * dt);
+		}
+		double measuredPan = node.getHeadPan();
+		double measuredTilt = node.getHeadTilt();
+		if (holding
+				|| (nowNanos - stateNanos < maxStateAgeNanos && (Math.abs(pan
+						- measuredPan) > maxDriftRadians || Math.abs(tilt
+						- measuredTilt) > maxDriftRadians))) {
+			pan = clampPan(measuredPan);
+			tilt = clampTilt(measuredTilt);
+		}
+		lastStepNanos = still ? 0 : nowNanos;
+		holding = still;
+
+		CommandBuffer<JointTrajectory> headCommand = node.getHeadCommand();
+		JointTrajectory trajectory = headCommand.edit();
+		double step = period / 1e9;
+		for (int i = 0; i < POINTS; i++) {
+			JointTrajectoryPoint p = trajectory.points.get(i);
+			double t = (i + 1) * step;
+			p.positions[0] = clampPan(pan + panRate * t);
+			p.positions[1] = clampTilt(tilt + tiltRate * t);
+			boolean last = i == POINTS - 1;
+			p.velocities[0] = last || p.positions[0] != pan + panRate * t ? 0
+					: panRate;
+			p.velocities[1] = last || p.positions[1] != tilt + tiltRate * t ? 0
+					: tiltRate;
+			long nanos = (long) (t * 1e9);
+			p.time_from_start.secs = (int) (nanos / 1000000000);
+			p.time_from_start.nsecs = (int) (nanos % 1000000000);
+		}
+		headCommand.commit();
+		node.headCommandChanged();
+		return still ? -1 : period;
+	}
+
+	private static double clampPan(double value) {
+		return Math.max(-PR2Control.maxHeadPan,
+				Math.min(PR2Control.maxHeadPan, value));
+	}
+
+	private static double clampTilt(double value) {
+		return Math.max(PR2Control.minHeadTilt,
+				Math.min(PR2Control.maxHeadTilt, value));
+	}
+}
@@ -0,0 +1,99 @@
+package org.cornell.pr2.control;
+
+/**
+ * Fixed-bucket latency histogram that never allocates while recording.
+ *
+ * Bucket {@code i} counts samples below 2^i microseconds (and at or above
+ * 2^(i-1)), so percentiles are reported as the upper bound of the bucket
+ * they fall in; the maximum is exact. Recording is meant for a single
+ * thread; other threads may read a slightly stale view.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 32;
+
+	private final long[] buckets = new long[BUCKETS];
+	private long count;
+	private long sumNanos;
+	private long maxNanos;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+		long micros = nanos / 1000;
+		int bucket = Math.min(BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(micros));
+		buckets[bucket]++;
+		count++;
+		sumNanos += nanos;
+		if (nanos > maxNanos) {
+			maxNanos = nanos;
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		sumNanos = 0;
+		maxNanos = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMaxMicros() {
+		return maxNanos / 1000;
+	}
+
+	public long getMeanMicros() {
+		long n = count;
+		return n == 0 ? 0 : sumNanos / n / 1000;
+	}
+
+	/**
+	 * @param fraction
+	 *            0...1.0, e.g. 0.99 for p99
+	 * @return upper bound in microseconds of the bucket holding the given
+	 *         percentile, or 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(double fraction) {
+		long n = count;
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return getMaxMicros();
+	}
+
+	/**
+	 * Appends "n=... p50=...us p99=...us max=...us".
+	 */
+	public void appendSummary(StringBuilder out) {
+		out.append("n=").append(getCount());
+		out.append(" p50=").append(getPercentileMicros(0.5)).append("us");
+		out.append(" p99=").append(getPercentileMicros(0.99)).append("us");
+		out.append(" max=").append(getMaxMicros()).append("us");
+	}
+
+	/**
+	 * Appends one line per non-empty bucket.
+	 */
+	public void appendBuckets(StringBuilder out) {
+		for (int i = 0; i < BUCKETS; i++) {
+			if (buckets[i] != 0) {
+				out.append("  <").append(1L << i).append("us: ")
+						.append(buckets[i]).append('\n');
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.cornell.pr2.control;
+
+/**
+ * Measures how long joystick commands take from touch to publish.
+ *
+ * Every posted command carries a sequence number and {@link System#nanoTime()}
+ * stamps taken when the touch was processed and when it was enqueued in the
+ * {@link CommandMailbox}. When the command is applied to a topic the stamps
+ * are parked there, and the next publish on that topic closes them out into
+ * the histograms. Commands that were coalesced away never reach a publish
+ * and are not recorded. All recording happens on the publish scheduler
+ * thread.
+ *
+ * The network leg is estimated separately from the header stamps of joint
+ * states arriving from the robot (see {@link #linkDelayMeasured}). This
+ * assumes the robot's and the tablet's clocks are synchronized, as they are
+ * on a PR2 setup running NTP; ages that are negative or over a second show
+ * that they are not and are ignored.
+ */
+public class LatencyTracker {
+	public static final int BASE = 0;
+	public static final int HEAD = 1;
+	public static final long maxLinkDelayNanos = 1000000000;
+	// A link measurement older than this no longer describes the link
+	public static final long linkMeasurementMaxAgeNanos = 2000000000;
+	private static final String[] TOPIC_NAMES = { "base", "head" };
+
+	private final LatencyHistogram touchToEnqueue = new LatencyHistogram();
+	private final LatencyHistogram enqueueToPublish = new LatencyHistogram();
+	private final LatencyHistogram touchToPublish = new LatencyHistogram();
+
+	private final boolean[] pending = new boolean[2];
+	private final int[] pendingSeq = new int[2];
+	private final long[] pendingTouchNanos = new long[2];
+	private final long[] pendingEnqueueNanos = new long[2];
+	private final int[] lastPublishedSeq = new int[2];
+
+	private volatile boolean resetRequested;
+
+	// Exponential average of touch>pub, readable from any thread
+	private volatile long smoothedTouchToPublishNanos;
+
+	// Exponential average of the robot-to-tablet delay, and the
+	// System.nanoTime() of the last plausible sample
+	private volatile long smoothedLinkDelayNanos;
+	private volatile long linkMeasuredNanos;
+
+	/**
+	 * Records that the command {@code seq} was applied to {@code topic}.
+	 * 
+	 * @param touchNanos
+	 *            when the touch was processed, or 0 for repeats of a held
+	 *            stick that have no touch of their own
+	 */
+	public void inputApplied(int topic, int seq, long touchNanos,
+			long enqueueNanos) {
+		checkReset();
+		pending[topic] = true;
+		pendingSeq[topic] = seq;
+		pendingTouchNanos[topic] = touchNanos;
+		pendingEnqueueNanos[topic] = enqueueNanos;
+	}
+
+	/**
+	 * Closes out the command pending on {@code topic}, if any.
+	 */
+	public void published(int topic, long nowNanos) {
+		checkReset();
+		if (!pending[topic]) {
+			return;
+		}
+		pending[topic] = false;
+		lastPublishedSeq[topic] = pendingSeq[topic];
+		long touch = pendingTouchNanos[topic];
+		long enqueue = pendingEnqueueNanos[topic];
+		enqueueToPublish.record(nowNanos - enqueue);
+		if (touch != 0) {
+			touchToEnqueue.record(enqueue - touch);
+			touchToPublish.record(nowNanos - touch);
+			long smoothed = smoothedTouchToPublishNanos;
+			smoothedTouchToPublishNanos = smoothed == 0 ? nowNanos - touch
+					: smoothed + (nowNanos - touch - smoothed) / 8;
+		}
+	}
+
+	/**
+	 * @return recent average time from touch to publish, or 0 before the
+	 *         first touch was published
+	 */
+	public long getSmoothedTouchToPublishNanos() {
+		return smoothedTouchToPublishNanos;
+	}
+
+	/**
+	 * Records how old a message from the robot was when it arrived, judged by
+	 * its header stamp. Called on the subscriber thread.
+	 * 
+	 * @param delayNanos
+	 *            ROS time of arrival minus the message's header stamp
+	 */
+	public void linkDelayMeasured(long delayNanos) {
+		if (delayNanos < 0 || delayNanos > maxLinkDelayNanos) {
+			return;
+		}
+		long smoothed = smoothedLinkDelayNanos;
+		smoothedLinkDelayNanos = linkMeasuredNanos == 0 ? delayNanos
+				: smoothed + (delayNanos - smoothed) / 8;
+		linkMeasuredNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return recent average one-way delay of the link to the robot, or -1 if
+	 *         it has not been measured recently
+	 */
+	public long getSmoothedLinkDelayNanos() {
+		long measured = linkMeasuredNanos;
+		if (measured == 0
+				|| System.nanoTime() - measured > linkMeasurementMaxAgeNanos) {
+			return -1;
+		}
+		return smoothedLinkDelayNanos;
+	}
+
+	/**
+	 * Clears all histograms the next time the scheduler thread records.
+	 */
+	public void reset() {
+		resetRequested = true;
+	}
+
+	private void checkReset() {
+		if (resetRequested) {
+			resetRequested = false;
+			touchToEnqueue.reset();
+			enqueueToPublish.reset();
+			touchToPublish.reset();
+		}
+	}
+
+	/**
+	 * @return a few lines suitable for an on-screen overlay
+	 */
+	public String summary() {
+		StringBuilder out = new StringBuilder(256);
+		out.append("touch>pub ");
+		touchToPublish.appendSummary(out);
+		out.append("\ntouch>enq ");
+		touchToEnqueue.appendSummary(out);
+		out.append("\nenq>pub   ");
+		enqueueToPublish.appendSummary(out);
+		long link = getSmoothedLinkDelayNanos();
+		out.append("\nlink      ");
+		if (link < 0) {
+			out.append("unmeasured");
+		} else {
+			out.append(link / 1000000).append(" ms");
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the summary followed by the full bucket counts
+	 */
+	public String dump() {
+		StringBuilder out = new StringBuilder(1024);
+		out.append(summary()).append('\n');
+		for (int topic = 0; topic < TOPIC_NAMES.length; topic++) {
+			out.append("last ").append(TOPIC_NAMES[topic]).append(" seq=")
+					.append(lastPublishedSeq[topic]).append('\n');
+		}
+		out.append("touch>pub buckets\n");
+		touchToPublish.appendBuckets(out);
+		out.append("touch>enq buckets\n");
+		touchToEnqueue.appendBuckets(out);
+		out.append("enq>pub buckets\n");
+		enqueueToPublish.appendBuckets(out);
+		return out.toString();
+	}
+}
@@ -1,12 +1,16 @@
 package org.cornell.pr2.control;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.net.URI;
 import java.util.Currency;
 
 import org.cornell.pr2.control.Common;
 import org.cornell.pr2.control.joystick.DualJoystickView;
 import org.cornell.pr2.control.joystick.JoystickView;
-import org.cornell.pr2.control.joystick.Pr2JoystickMovedListener;
+import org.cornell.pr2.control.input.GamepadInputSource;
+import org.cornell.pr2.control.input.InputPredictor;
 import org.ros.address.InetAddressFactory;
 import org.ros.android.BitmapFromCompressedImage;
 import org.ros.android.RosActivity;
@@ -16,6 +20,7 @@ import org.ros.android.views.RosImageView;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.Handler;
 import org.ros.android.BitmapFromImage;
 import org.ros.exception.RosException;
 import org.ros.namespace.NameResolver;
@@ -28,11 +33,13 @@ import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeMainExecutor;
 
 import android.util.Log;
+import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.hardware.SensorManager;
@@ -45,18 +52,33 @@ import org.cornell.pr2.control.R;
  */
 public class MainActivity extends RosActivity {
 	public static final String imageTopic = "/wide_stereo/left/image_color/compressed";
-//	public static final String imageTopic = "/wide_stereo/resize_compressed";
+	public static final String resizedImageTopic = "/wide_stereo/resize/compressed";
 
 	public static final String imageMessage = "sensor_msgs/CompressedImage";
 
 	private RosImageView<CompressedImage> rosImageView;
 	private DualJoystickView joystickView;
-	Pr2JoystickMovedListener listenerLeft;
-	Pr2JoystickMovedListener listenerRight;
+	private GamepadInputSource gamepad;
+	private InputPredictor predictor;
+	private AdaptiveStreamController streamController;
+	// Set on the UI thread once init() has started the nodes
+	private boolean nodesStarted;
 
 	PR2Control pr2Controller;
 	ROSNodeWrapper rosNode;
 	private ToggleButton togglePart;
+	private TextView watchdogAlarm;
+	private TextView latencyOverlay;
+	private Handler overlayHandler = new Handler();
+	private static final long overlayRefreshMillis = 500;
+	private static final String latencyDumpFile = "teleop_latency.txt";
+	private Runnable overlayRefresh = new Runnable() {
+		@Override
+		public void run() {
+			latencyOverlay.setText(rosNode.getLatencyTracker().summary());
+			overlayHandler.postDelayed(this, overlayRefreshMillis);
+		}
+	};
 	private Common.BODY_PART activebodyPart;
 
 	public MainActivity() {
@@ -71,18 +93,20 @@ public class MainActivity extends RosActivity {
 		rosNode = new ROSNodeWrapper();
 		
 		pr2Controller = new PR2Control(rosNode);
-		listenerLeft = new Pr2JoystickMovedListener(this,new String("L"));
-		listenerRight = new Pr2JoystickMovedListener(this,new String("R"));
+		predictor = new InputPredictor(pr2Controller,
+				rosNode.getLatencyTracker());
+		gamepad = new GamepadInputSource();
 		
 		rosImageView = (RosImageView<CompressedImage>) findViewById(R.id.imageView);
 		rosImageView.setTopicName(imageTopic);
 		rosImageView.setMessageType(imageMessage);
 		rosImageView
 				.setMessageToBitmapCallable(new BitmapFromCompressedImage());
+		streamController = new AdaptiveStreamController(rosImageView,
+				imageTopic, resizedImageTopic);
 
 		joystickView = (DualJoystickView) findViewById(R.id.dualjoystickView);
 //		joystickView.bringToFront();
-		joystickView.setOnJostickMovedListener(listenerLeft, listenerRight);
 		togglePart = (ToggleButton) findViewById(R.id.toggle_body_part);
 		togglePart.setOnClickListener(new OnClickListener() {
 			@Override
@@ -91,6 +115,38 @@ public class MainActivity extends RosActivity {
 				toggleBodyPart();
 			}
 		});
+		watchdogAlarm = (TextView) findViewById(R.id.watchdog_alarm);
+		latencyOverlay = (TextView) findViewById(R.id.latency_overlay);
+		pr2Controller.getWatchdog().setListener(new CommandWatchdog.Listener() {
+			@Override
+			public void onWatchdogTripped(final CommandWatchdog.Reason reason) {
+				runOnUiThread(new Runnable() {
+					public void run() {
+						switch (reason) {
+						case INPUT_STALLED:
+							watchdogAlarm.setText(R.string.watchdog_input_stalled);
+							break;
+						case PUBLISH_STALLED:
+							watchdogAlarm.setText(R.string.watchdog_publish_stalled);
+							break;
+						default:
+							watchdogAlarm.setText(R.string.watchdog_link_stalled);
+							break;
+						}
+						watchdogAlarm.setVisibility(View.VISIBLE);
+					}
+				});
+			}
+
+			@Override
+			public void onWatchdogCleared() {
+				runOnUiThread(new Runnable() {
+					public void run() {
+						watchdogAlarm.setVisibility(View.GONE);
+					}
+				});
+			}
+		});
 	}
 
 	protected boolean checkConnectivity() {
@@ -119,9 +175,16 @@ public class MainActivity extends RosActivity {
 					getMasterUri());
 			nodeMainExecutor.execute(rosImageView,
 					nodeConfiguration.setNodeName("pr2_control/video_view"));
+			runOnUiThread(new Runnable() {
+				public void run() {
+					nodesStarted = true;
+					streamController.start();
+				}
+			});
 			
 			nodeMainExecutor.execute(rosNode,
 					nodeConfiguration.setNodeName("pr2_control/joystick_view"));
+			pr2Controller.start();
 			// nodeMainExecutor.execute(orientationPublisher,
 			// nodeConfiguration.setNodeName("pr2_control/orientation_pub"));
 			// NameResolver appNamespace = getAppNamespace(super.node);
@@ -136,15 +199,114 @@ public class MainActivity extends RosActivity {
 		}
 
 	}
+	@Override
+	public boolean onGenericMotionEvent(MotionEvent event) {
+		return gamepad.onGenericMotionEvent(event)
+				|| super.onGenericMotionEvent(event);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.debug_menu, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+		case R.id.latency_overlay:
+			item.setChecked(!item.isChecked());
+			showLatencyOverlay(item.isChecked());
+			return true;
+		case R.id.latency_dump:
+			dumpLatency();
+			return true;
+		case R.id.latency_reset:
+			rosNode.getLatencyTracker().reset();
+			return true;
+		case R.id.input_prediction:
+			item.setChecked(!item.isChecked());
+			predictor.setEnabled(item.isChecked());
+			return true;
+		case R.id.adaptive_video:
+			item.setChecked(!item.isChecked());
+			streamController.setEnabled(item.isChecked());
+			return true;
+		case R.id.touch_trace:
+			item.setChecked(!item.isChecked());
+			joystickView.setTraceEnabled(item.isChecked());
+			return true;
+		case R.id.touch_trace_dump:
+			Log.i("TouchTrace", joystickView.dumpTrace());
+			return true;
+		default:
+			return super.onOptionsItemSelected(item);
+		}
+	}
+
+	protected void showLatencyOverlay(boolean show) {
+		overlayHandler.removeCallbacks(overlayRefresh);
+		if (show) {
+			latencyOverlay.setVisibility(View.VISIBLE);
+			overlayRefresh.run();
+		} else {
+			latencyOverlay.setVisibility(View.GONE);
+		}
+	}
+
+	protected void dumpLatency() {
+		String dump = rosNode.getLatencyTracker().dump();
+		Log.i("LatencyTracker", dump);
+		File dir = getExternalFilesDir(null);
+		if (dir == null)
+			dir = getFilesDir();
+		File file = new File(dir, latencyDumpFile);
+		try {
+			FileWriter writer = new FileWriter(file);
+			try {
+				writer.write(dump);
+			} finally {
+				writer.close();
+			}
+			Toast.makeText(this, "Latency written to " + file.getPath(),
+					Toast.LENGTH_LONG).show();
+		} catch (IOException e) {
+			Log.e("LatencyTracker", "failed to write " + file, e);
+			Toast.makeText(this, "Failed: " + e.getMessage(),
+					Toast.LENGTH_LONG).show();
+		}
+	}
+
+	@Override
+	protected void onStart() {
+		super.onStart();
+		// Paired with onStop(). The nodes and the publish scheduler stay up
+		// while the activity is in the background, so only the input sources
+		// and the stream controller need to come back.
+		joystickView.start(predictor);
+		gamepad.start(pr2Controller);
+		if (nodesStarted) {
+			streamController.start();
+		}
+	}
+
 	@Override
 	protected void onStop() {
+		showLatencyOverlay(false);
+		streamController.stop();
+		joystickView.stop();
+		gamepad.stop();
+		// The node keeps publishing in the background, so do not leave the
+		// base moving until the watchdog notices the input stopped
+		pr2Controller.requestBaseStop();
 		super.onStop();
-		rosNode.stop();
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		streamController.shutdown();
 		rosNode.stop();
 	}
 	protected void toggleBodyPart() {
@@ -156,8 +318,4 @@ public class MainActivity extends RosActivity {
 				Toast.LENGTH_LONG).show();
 
 	}
-	
-	public void sendJoystickEvent(String stringID,int pan,int tilt) {
-		pr2Controller.sendMessage(stringID,pan, tilt);
-	}
 }
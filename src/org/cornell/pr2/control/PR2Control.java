@@ -29,115 +29,205 @@
 
 package org.cornell.pr2.control;
 
-import android.content.Context;
 import android.util.Log;
-import java.util.ArrayList;
-
-import org.cornell.pr2.control.Common;
-import org.ros.namespace.GraphName;
-import java.lang.Thread;
 
+import org.cornell.pr2.control.input.InputSink;
 import org.ros.message.geometry_msgs.Twist;
-import org.ros.message.trajectory_msgs.JointTrajectory;
-import org.ros.message.trajectory_msgs.JointTrajectoryPoint;
-
-import android.view.MotionEvent;
-import org.ros.node.Node;
-import org.ros.node.NodeMain;
-import org.ros.exception.RosException;
-
-import android.view.View;
-import org.ros.node.topic.Publisher;
-import org.ros.message.Message;
 
-public class PR2Control {
+public class PR2Control implements InputSink {
 	ROSNodeWrapper currentNode;
 	public static final double maxHeadPan = 2.7;
 	public static final double maxHeadTilt = 1.4;
 	public static final double minHeadTilt = -0.4;
+	// Max head velocities in rad/s at full stick deflection
 	public static final double headTiltDiff = 0.5;
 	public static final double headPanDiff = 1.2;
+	// Stick deflection reported by JoystickView at the edge of its range
+	public static final double stickRange = 10;
 	public static final String TAG = "JoyStickView";
 
 
-	private Common.BODY_PART movePart;
+	private volatile Common.BODY_PART movePart;
+	private final CommandMailbox mailbox;
+	private final CommandWatchdog watchdog;
+	private final BaseVelocityShaper baseShaper;
+	private final HeadTrajectoryStreamer headStreamer;
+
+	// Stops the base on the scheduler thread, where the shaper lives, after
+	// control moved away from the body.
+	private volatile boolean baseStopPending;
+	private volatile PublishScheduler.Handle baseStopHandle;
+	private final PublishScheduler.Task baseStopper = new PublishScheduler.Task() {
+		@Override
+		public long run(long nowNanos) {
+			if (baseStopPending) {
+				baseStopPending = false;
+				stopBase();
+			}
+			return -1;
+		}
+	};
 
 	public PR2Control(ROSNodeWrapper node) {
 		currentNode = node;
 		movePart = Common.BODY_PART.BODY;
+		baseShaper = new BaseVelocityShaper(node);
+		headStreamer = new HeadTrajectoryStreamer(node);
+		watchdog = new CommandWatchdog(this, node);
+		mailbox = new CommandMailbox(this, watchdog,
+				node.getLatencyTracker());
+	}
+
+	/**
+	 * Starts draining joystick input, the base velocity ramp, the head
+	 * streamer and the base watchdog on the node's publish scheduler.
+	 */
+	public void start() {
+		mailbox.start(currentNode.getScheduler());
+		baseShaper.start(currentNode.getScheduler());
+		headStreamer.start(currentNode.getScheduler());
+		watchdog.start(currentNode.getScheduler());
+		if (baseStopHandle != null) {
+			baseStopHandle.unregister();
+		}
+		baseStopHandle = currentNode.getScheduler().register(baseStopper);
+	}
+
+	public CommandWatchdog getWatchdog() {
+		return watchdog;
+	}
+
+	public BaseVelocityShaper getBaseShaper() {
+		return baseShaper;
+	}
+
+	public HeadTrajectoryStreamer getHeadStreamer() {
+		return headStreamer;
+	}
+
+	/**
+	 * @return true while the base is commanded or still ramping to a non-zero
+	 *         velocity; only valid on the publish scheduler thread
+	 */
+	public boolean isBaseMoving() {
+		return baseShaper.isMoving();
+	}
+
+	/**
+	 * Queues the newest position of a stick; only the latest value per stick
+	 * and body part reaches {@link #sendMessage}.
+	 */
+	public void postMessage(Common.STICK stick, float vSlide, float hSlide,
+			long touchNanos) {
+		mailbox.post(stick, vSlide, hSlide, touchNanos);
 	}
 
+	@Override
+	public void onStickMoved(Common.STICK stick, float vSlide, float hSlide,
+			long touchNanos) {
+		postMessage(stick, vSlide, hSlide, touchNanos);
+	}
+
+	/**
+	 * Switches the sticks to another body part. The part that is left is
+	 * stopped, since the release of the stick now goes to the new part and
+	 * the keepalive would otherwise repeat its last command indefinitely.
+	 */
 	public void setActiveBodyPart(Common.BODY_PART var) {
+		Common.BODY_PART previous = movePart;
 		movePart = var;
+		if (var != Common.BODY_PART.HEAD) {
+			headStreamer.setRates(0, 0);
+		}
+		if (previous == Common.BODY_PART.BODY && var != Common.BODY_PART.BODY) {
+			requestBaseStop();
+		}
+	}
+
+	/**
+	 * Has the scheduler thread send a zero base command as soon as it can.
+	 * Safe to call from any thread.
+	 */
+	public void requestBaseStop() {
+		baseStopPending = true;
+		PublishScheduler.Handle h = baseStopHandle;
+		if (h != null) {
+			h.wake();
+		}
 	}
 
 	public Common.BODY_PART getActiveBodyPart() {
 		return movePart;
 	}
 
-	public void sendHeadMessage(int pan, int tilt) {
-		JointTrajectory touchTrajMessage = currentNode.getTouchTrajMessage();
-		JointTrajectoryPoint p = new JointTrajectoryPoint();
-		p.positions = new double[2];
-		p.velocities = new double[2];
-		double val = Math.max(maxHeadPan, tilt);
-		p.positions[0] = val;
-		p.velocities[0] = 0.0;
-
-		val = Math.min(maxHeadTilt, pan);
-		val = Math.max(minHeadTilt, val);
-		p.positions[1] = val;
-		p.velocities[1] = 0.0;
-
-		touchTrajMessage.joint_names = new ArrayList<String>(2);
-		touchTrajMessage.joint_names.add("head_pan_joint");
-		touchTrajMessage.joint_names.add("head_tilt_joint");
-
-		touchTrajMessage.points = new ArrayList<JointTrajectoryPoint>(1);
-		touchTrajMessage.points.add(p);
-		Log.i(TAG, "Moving Head val=" + val);
+	/**
+	 * Streams the head at a velocity proportional to the stick deflection.
+	 */
+	public void sendHeadMessage(float x, float y) {
+		headStreamer.setRates(-x * headPanDiff / stickRange, y * headTiltDiff
+				/ stickRange);
 	}
 
 
-	public void sendBodyTurnMessage(int vSlide, int hSlide) {
-		Twist touchCmdMessage = currentNode.getTouchCmdMessage();
-		
+	/**
+	 * Replaces the base command with zero velocity and sends it right away,
+	 * skipping the acceleration limits.
+	 */
+	public void stopBase() {
+		baseShaper.reset();
+		CommandBuffer<Twist> baseCommand = currentNode.getBaseCommand();
+		Twist touchCmdMessage = baseCommand.edit();
+
 		touchCmdMessage.linear.x = 0;
 		touchCmdMessage.linear.y = 0;
 		touchCmdMessage.linear.z = 0;
 		touchCmdMessage.angular.x = 0;
 		touchCmdMessage.angular.y = 0;
-		touchCmdMessage.angular.z = vSlide * -0.8;
+		touchCmdMessage.angular.z = 0;
+		baseCommand.commit();
+		currentNode.baseCommandChanged();
 	}
 
-	public void sendBodyStrafeMessage(int vSlide, int hSlide) {
-		Twist touchCmdMessage = currentNode.getTouchCmdMessage();
-		
-		touchCmdMessage.linear.x = hSlide * -0.8;
-		touchCmdMessage.linear.y = vSlide * -0.8;
-		touchCmdMessage.linear.z = 0;
-		touchCmdMessage.angular.x = 0;
-		touchCmdMessage.angular.y = 0;
-		touchCmdMessage.angular.z = 0;
-//		Log.i(TAG, "Moving Body z =" + touchCmdMessage.angular.z + " x ="
-//				+ touchCmdMessage.linear.x);
+	/**
+	 * @return false if the command was dropped because the watchdog tripped
+	 */
+	public boolean sendBodyTurnMessage(float vSlide, float hSlide) {
+		if (watchdog.isTripped())
+			return false;
+		baseShaper.setTarget(0, 0, vSlide * -0.8);
+		return true;
+	}
+
+	/**
+	 * @return false if the command was dropped because the watchdog tripped
+	 */
+	public boolean sendBodyStrafeMessage(float vSlide, float hSlide) {
+		if (watchdog.isTripped())
+			return false;
+		baseShaper.setTarget(hSlide * -0.8, vSlide * -0.8, 0);
+		return true;
 	}
 
-	public void sendMessage(String stringID,int vSlide, int hSlide) {
-		switch (movePart) {
+	/**
+	 * @return true if the command was applied, false if it was dropped or
+	 *         the stick does nothing for that body part
+	 */
+	public boolean sendMessage(Common.STICK stick, Common.BODY_PART part,
+			float vSlide, float hSlide) {
+		switch (part) {
 		case BODY:
-			if(stringID.equalsIgnoreCase("R"))
-				sendBodyStrafeMessage(vSlide, hSlide);
-			else if(stringID.equalsIgnoreCase("L"))
-				sendBodyTurnMessage(vSlide, hSlide);			
-			break;
+			if (stick == Common.STICK.RIGHT)
+				return sendBodyStrafeMessage(vSlide, hSlide);
+			else
+				return sendBodyTurnMessage(vSlide, hSlide);
 		case HEAD:
-			if(stringID.equalsIgnoreCase("R"))
-				sendHeadMessage(vSlide, hSlide);
-			break;
+			if (stick != Common.STICK.RIGHT)
+				return false;
+			sendHeadMessage(vSlide, hSlide);
+			return true;
 		default:
 			Log.e(TAG, "Not Implemented yet");
-			break;
+			return false;
 		}
 	}
 	// public void updateMessage(View arg0, int action, MotionEvent motionEvent)
@@ -0,0 +1,223 @@
+package org.cornell.pr2.control;
+
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Runs every periodic command task on one shared thread.
+ *
+ * Each task is registered once and gets a {@link Handle}; the handle is used
+ * to wake the task early (e.g. when its command changed) and to unregister
+ * it. Restarting a controller therefore swaps a handle instead of spawning
+ * another thread, and no allocation happens per run.
+ */
+public class PublishScheduler {
+	private static final String TAG = "PublishScheduler";
+
+	public interface Task {
+		/**
+		 * Runs the task once.
+		 *
+		 * @param nowNanos
+		 *            current {@link System#nanoTime()}
+		 * @return nanoseconds until the task wants to run again, or a negative
+		 *         value to sleep until it is woken through its handle
+		 */
+		long run(long nowNanos);
+	}
+
+	public final class Handle {
+		private final Task task;
+		private long deadline;
+		private boolean idle;
+		private boolean running;
+		private boolean wokenWhileRunning;
+		private long wakeDeadline;
+		private boolean registered = true;
+
+		private Handle(Task task) {
+			this.task = task;
+		}
+
+		/**
+		 * Runs the task as soon as possible.
+		 */
+		public void wake() {
+			wakeAt(System.nanoTime());
+		}
+
+		/**
+		 * Moves the next run forward to {@code nanos} if it is currently
+		 * scheduled later.
+		 */
+		public void wakeAt(long nanos) {
+			synchronized (lock) {
+				if (running) {
+					if (!wokenWhileRunning || nanos - wakeDeadline < 0) {
+						wakeDeadline = nanos;
+						wokenWhileRunning = true;
+					}
+				} else if (idle || nanos - deadline < 0) {
+					deadline = nanos;
+					idle = false;
+					lock.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Removes the task. If it is running on the scheduler thread right
+		 * now, waits for that run to finish, so that whatever the task uses
+		 * can be torn down as soon as this returns.
+		 */
+		public void unregister() {
+			synchronized (lock) {
+				if (registered) {
+					registered = false;
+					handles.remove(this);
+					lock.notifyAll();
+				}
+				boolean interrupted = false;
+				while (running && Thread.currentThread() != thread) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		public boolean isRegistered() {
+			synchronized (lock) {
+				return registered;
+			}
+		}
+	}
+
+	private final Object lock = new Object();
+	private final ArrayList<Handle> handles = new ArrayList<Handle>();
+	private Handle[] due = new Handle[4];
+	private Thread thread;
+
+	/**
+	 * Adds a task that first runs immediately.
+	 */
+	public Handle register(Task task) {
+		Handle handle = new Handle(task);
+		synchronized (lock) {
+			handle.deadline = System.nanoTime();
+			handles.add(handle);
+			if (thread == null) {
+				start();
+			}
+			lock.notifyAll();
+		}
+		return handle;
+	}
+
+	/**
+	 * Stops the scheduler thread and drops every registered task.
+	 */
+	public void shutdown() {
+		synchronized (lock) {
+			for (int i = 0; i < handles.size(); i++) {
+				handles.get(i).registered = false;
+			}
+			handles.clear();
+			if (thread != null) {
+				thread.interrupt();
+				thread = null;
+			}
+		}
+	}
+
+	private void start() {
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						runDueTasks(awaitDueTasks());
+					}
+				} catch (InterruptedException e) {
+				}
+			}
+		}, TAG);
+		Log.i(TAG, "started scheduler thread");
+		thread.start();
+	}
+
+	private int awaitDueTasks() throws InterruptedException {
+		synchronized (lock) {
+			while (true) {
+				if (due.length < handles.size()) {
+					due = new Handle[handles.size() * 2];
+				}
+				long now = System.nanoTime();
+				long wait = Long.MAX_VALUE;
+				int count = 0;
+				for (int i = 0; i < handles.size(); i++) {
+					Handle handle = handles.get(i);
+					if (handle.idle) {
+						continue;
+					}
+					long remaining = handle.deadline - now;
+					if (remaining <= 0) {
+						handle.running = true;
+						due[count++] = handle;
+					} else if (remaining < wait) {
+						wait = remaining;
+					}
+				}
+				if (count > 0) {
+					return count;
+				}
+				if (wait == Long.MAX_VALUE) {
+					lock.wait();
+				} else {
+					lock.wait(wait / 1000000, (int) (wait % 1000000));
+				}
+			}
+		}
+	}
+
+	private void runDueTasks(int count) {
+		for (int i = 0; i < count; i++) {
+			Handle handle = due[i];
+			due[i] = null;
+			synchronized (lock) {
+				// Unregistered after it was collected as due
+				if (!handle.registered) {
+					handle.running = false;
+					lock.notifyAll();
+					continue;
+				}
+			}
+			long now = System.nanoTime();
+			long next = handle.task.run(now);
+			synchronized (lock) {
+				handle.running = false;
+				if (!handle.registered) {
+					lock.notifyAll();
+					continue;
+				}
+				handle.idle = next < 0;
+				handle.deadline = now + next;
+				// A wakeAt() that arrived while the task was running wins
+				// if it asked for an earlier run.
+				if (handle.wokenWhileRunning) {
+					handle.wokenWhileRunning = false;
+					if (handle.idle || handle.wakeDeadline - handle.deadline < 0) {
+						handle.deadline = handle.wakeDeadline;
+						handle.idle = false;
+					}
+				}
+			}
+		}
+	}
+}
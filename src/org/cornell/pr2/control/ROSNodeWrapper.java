@@ -2,12 +2,17 @@ package org.cornell.pr2.control;
 
 import org.ros.exception.RosException;
 import org.ros.message.Message;
+import org.ros.message.MessageListener;
+import org.ros.message.Time;
 import org.ros.message.geometry_msgs.Twist;
+import org.ros.message.sensor_msgs.JointState;
 import org.ros.message.trajectory_msgs.JointTrajectory;
+import org.ros.message.trajectory_msgs.JointTrajectoryPoint;
 import org.ros.namespace.GraphName;
 import org.ros.node.Node;
 import org.ros.node.NodeMain;
 import org.ros.node.topic.Publisher;
+import org.ros.node.topic.Subscriber;
 
 import android.util.Log;
 
@@ -16,30 +21,187 @@ public class ROSNodeWrapper implements NodeMain {
 	public static final String headTiltTopic = "head_tilt_joint";
 	public static final String headPanTopic = "head_pan_joint";
 	public static final String headControlTopic = "head_traj_controller/command";
+	public static final String jointStateTopic = "/joint_states";
 
-	private static Twist touchCmdMessage = new Twist();
-	private static JointTrajectory touchTrajMessage = new JointTrajectory();
-	private boolean sendMessages = true;
-	private boolean nullMessage = true;
+	// Change-triggered sends are capped at maxRate; an unchanged command is
+	// re-sent at keepaliveRate. Starting the base controller raises its
+	// keepalive to at least controllerKeepaliveRate.
+	public static final double defaultMaxRate = 50;
+	public static final double idleKeepaliveRate = 1;
+	public static final double controllerKeepaliveRate = 10;
+
+	private final CommandBuffer<Twist> baseCommand = new CommandBuffer<Twist>(
+			new Twist(), new Twist(), new Twist());
+	private final CommandBuffer<JointTrajectory> headCommand = new CommandBuffer<JointTrajectory>(
+			newHeadTrajectory(), newHeadTrajectory(), newHeadTrajectory());
 	private Publisher<Twist> twistPub;
 	private Publisher<JointTrajectory> jointPub;
+	private Subscriber<JointState> jointStateSub;
+
+	// Latest measured head position; the stamp is written last and read
+	// first, and is 0 until a joint state with both head joints arrived.
+	private volatile double headPan;
+	private volatile double headTilt;
+	private volatile long headStateNanos;
+	private volatile long feedbackNanos;
+	private volatile Node node;
+	private int panIndex = -1;
+	private int tiltIndex = -1;
+
+	private final PublishScheduler scheduler = new PublishScheduler();
+	private final LatencyTracker latencyTracker = new LatencyTracker();
+	private volatile CommandPublisher<Twist> basePublisher;
+	private volatile CommandPublisher<JointTrajectory> headPublisher;
+
+	private double baseMaxRate = defaultMaxRate;
+	private double baseKeepaliveRate = idleKeepaliveRate;
+	private double headMaxRate = defaultMaxRate;
+	private double headKeepaliveRate = idleKeepaliveRate;
+
+	/**
+	 * Shared thread that hosts every periodic publisher of this node.
+	 */
+	public PublishScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
+
+	public CommandBuffer<Twist> getBaseCommand() {
+		return baseCommand;
+	}
+
+	public CommandBuffer<JointTrajectory> getHeadCommand() {
+		return headCommand;
+	}
+
+	/**
+	 * Builds a reusable head command with the pan and tilt joints and the
+	 * look-ahead points that {@link HeadTrajectoryStreamer} fills in place.
+	 */
+	private static JointTrajectory newHeadTrajectory() {
+		JointTrajectory trajectory = new JointTrajectory();
+		trajectory.joint_names.add(headPanTopic);
+		trajectory.joint_names.add(headTiltTopic);
+		for (int i = 0; i < HeadTrajectoryStreamer.POINTS; i++) {
+			JointTrajectoryPoint p = new JointTrajectoryPoint();
+			p.positions = new double[2];
+			p.velocities = new double[2];
+			trajectory.points.add(p);
+		}
+		return trajectory;
+	}
+
+	/**
+	 * Sends the base command right away instead of waiting for the next
+	 * keepalive.
+	 */
+	public void baseCommandChanged() {
+		CommandPublisher<Twist> pub = basePublisher;
+		if (pub != null) {
+			pub.commandChanged();
+		}
+	}
+
+	/**
+	 * Sends the head command right away instead of waiting for the next
+	 * keepalive.
+	 */
+	public void headCommandChanged() {
+		CommandPublisher<JointTrajectory> pub = headPublisher;
+		if (pub != null) {
+			pub.commandChanged();
+		}
+	}
+
+	/**
+	 * Records the measured head position. Called for every joint state
+	 * received; public so that tests can feed a position without a robot.
+	 */
+	public void headStateReceived(double pan, double tilt) {
+		headPan = pan;
+		headTilt = tilt;
+		headStateNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} when the head position was last
+	 *         measured, or 0 if it never was
+	 */
+	public long getHeadStateNanos() {
+		return headStateNanos;
+	}
+
+	public double getHeadPan() {
+		return headPan;
+	}
 
-	private Thread pubThread;
+	public double getHeadTilt() {
+		return headTilt;
+	}
 
-	public Twist getTouchCmdMessage() {
-		return touchCmdMessage;
+	/**
+	 * @return {@link System#nanoTime()} when the last joint state arrived from
+	 *         the robot, or 0 if none did; unlike a successful publish, this
+	 *         shows that the link works
+	 */
+	public long getLastFeedbackNanos() {
+		return feedbackNanos;
 	}
 
-	public JointTrajectory getTouchTrajMessage() {
-		return touchTrajMessage;
+	private void jointStateReceived(JointState state) {
+		feedbackNanos = System.nanoTime();
+		// The stamp says when the robot sampled the joints, so its age on
+		// arrival is the one-way delay of the link
+		Node n = node;
+		Time stamp = state.header.stamp;
+		if (n != null && stamp.secs != 0) {
+			Time now = n.getCurrentTime();
+			latencyTracker.linkDelayMeasured((now.secs - (long) stamp.secs)
+					* 1000000000L + now.nsecs - stamp.nsecs);
+		}
+		// The joint order is fixed per publisher, so the lookup is redone
+		// only when the cached indices stop matching.
+		if (panIndex < 0 || panIndex >= state.name.size()
+				|| !headPanTopic.equals(state.name.get(panIndex))) {
+			panIndex = state.name.indexOf(headPanTopic);
+		}
+		if (tiltIndex < 0 || tiltIndex >= state.name.size()
+				|| !headTiltTopic.equals(state.name.get(tiltIndex))) {
+			tiltIndex = state.name.indexOf(headTiltTopic);
+		}
+		if (panIndex < 0 || tiltIndex < 0
+				|| Math.max(panIndex, tiltIndex) >= state.position.length) {
+			return;
+		}
+		headStateReceived(state.position[panIndex], state.position[tiltIndex]);
 	}
 
-	public void setSendMessage(boolean flag) {
-		sendMessages = flag;
+	/**
+	 * @return {@link System#nanoTime()} of the last successful base send, or 0
+	 *         if the base publisher is not running
+	 */
+	public long getLastBasePublishNanos() {
+		CommandPublisher<Twist> pub = basePublisher;
+		return pub != null ? pub.getLastSuccessNanos() : 0;
 	}
 
-	public void setNullMessage(boolean flag) {
-		nullMessage = flag;
+	public void setBaseRates(double maxRate, double keepaliveRate) {
+		baseMaxRate = maxRate;
+		baseKeepaliveRate = keepaliveRate;
+		if (basePublisher != null) {
+			basePublisher.setRates(maxRate, keepaliveRate);
+		}
+	}
+
+	public void setHeadRates(double maxRate, double keepaliveRate) {
+		headMaxRate = maxRate;
+		headKeepaliveRate = keepaliveRate;
+		if (headPublisher != null) {
+			headPublisher.setRates(maxRate, keepaliveRate);
+		}
 	}
 
 	@Override
@@ -54,33 +216,6 @@ public class ROSNodeWrapper implements NodeMain {
 
 	}
 
-	private <T extends Message> void createPublisherThread(
-			final Publisher<T> pub, final T message, final int rate) {
-		pubThread = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				try {
-					while (true) {
-						if (/*sendMessages*/true) {
-//							Log.i("JoystickView", "send joystick message");
-							pub.publish(message);
-							if (nullMessage) {
-								sendMessages = false;
-							}
-						} else {
-//							Log.i("JoystickView", "skipping joystick");
-						}
-						Thread.sleep(1000 / rate);
-					}
-				} catch (InterruptedException e) {
-				}
-			}
-		});
-		Log.i("JoystickView", "started pub thread");
-		pubThread.start();
-	}
-
 	@Override
 	public GraphName getDefaultNodeName() {
 		return new GraphName("pr2_control/joystick_view");
@@ -88,40 +223,87 @@ public class ROSNodeWrapper implements NodeMain {
 
 	@Override
 	public void onStart(Node node) {
+		this.node = node;
 		Log.i("JoystickView", "init twistPub");
 		twistPub = node.newPublisher(baseControlTopic, "geometry_msgs/Twist");
-		createPublisherThread(twistPub, touchCmdMessage, 1);
+		basePublisher = startCommandPublisher(basePublisher, twistPub,
+				baseCommand, LatencyTracker.BASE, baseMaxRate,
+				baseKeepaliveRate);
 		jointPub = node.newPublisher(headControlTopic,
 				"trajectory_msgs/JointTrajectory");
-		createPublisherThread(jointPub, touchTrajMessage, 1);
+		headPublisher = startCommandPublisher(headPublisher, jointPub,
+				headCommand, LatencyTracker.HEAD, headMaxRate,
+				headKeepaliveRate);
+		jointStateSub = node.newSubscriber(jointStateTopic,
+				"sensor_msgs/JointState");
+		jointStateSub.addMessageListener(new MessageListener<JointState>() {
+			@Override
+			public void onNewMessage(JointState message) {
+				jointStateReceived(message);
+			}
+		});
+	}
+
+	private <T extends Message> CommandPublisher<T> startCommandPublisher(
+			CommandPublisher<T> previous, Publisher<T> pub,
+			CommandBuffer<T> command, int latencyTopic, double maxRate,
+			double keepaliveRate) {
+		if (previous != null) {
+			previous.stop();
+		}
+		CommandPublisher<T> commandPublisher = new CommandPublisher<T>(pub,
+				command, latencyTracker, latencyTopic, maxRate, keepaliveRate);
+		commandPublisher.start(scheduler);
+		return commandPublisher;
 	}
 
 	public void startBaseControllerNode(Node node) throws RosException {
 		Log.i("JoystickView", "init Publisher");
+		// The old task must be gone before its publisher is shut down
+		if (basePublisher != null) {
+			basePublisher.stop();
+			basePublisher = null;
+		}
 		if (twistPub != null) {
 			twistPub.shutdown();
 			twistPub = null;
 		}
 
 		twistPub = node.newPublisher(baseControlTopic, "geometry_msgs/Twist");
-		createPublisherThread(twistPub, touchCmdMessage, 10);
+		baseKeepaliveRate = Math.max(baseKeepaliveRate,
+				controllerKeepaliveRate);
+		basePublisher = startCommandPublisher(basePublisher, twistPub,
+				baseCommand, LatencyTracker.BASE, baseMaxRate,
+				baseKeepaliveRate);
 	}
 
 	public void startHeadControllerNode(Node node) throws RosException {
+		if (headPublisher != null) {
+			headPublisher.stop();
+			headPublisher = null;
+		}
 		if (jointPub != null) {
 			jointPub.shutdown();
 			jointPub = null;
 		}
 
+		// The head keeps its slower keepalive: re-sending a look-ahead
+		// trajectory between streamer updates would pull the head back.
 		jointPub = node.newPublisher(headControlTopic,
 				"trajectory_msgs/JointTrajectory");
-		createPublisherThread(jointPub, touchTrajMessage, 10);
+		headPublisher = startCommandPublisher(headPublisher, jointPub,
+				headCommand, LatencyTracker.HEAD, headMaxRate,
+				headKeepaliveRate);
 	}
 
 	public void stop() {
-		if (pubThread != null) {
-			pubThread.interrupt();
-			pubThread = null;
+		if (basePublisher != null) {
+			basePublisher.stop();
+			basePublisher = null;
+		}
+		if (headPublisher != null) {
+			headPublisher.stop();
+			headPublisher = null;
 		}
 		if (twistPub != null) {
 			twistPub.shutdown();
@@ -131,5 +313,10 @@ public class ROSNodeWrapper implements NodeMain {
 			jointPub.shutdown();
 			jointPub = null;
 		}
+		if (jointStateSub != null) {
+			jointStateSub.shutdown();
+			jointStateSub = null;
+		}
+		scheduler.shutdown();
 	}
 }
@@ -0,0 +1,84 @@
+package org.cornell.pr2.control;
+
+/**
+ * Moves one velocity axis toward a target under acceleration and jerk
+ * limits.
+ *
+ * The acceleration is chosen so it can always be brought back to zero by
+ * the time the target is reached, so the output approaches the target
+ * without overshooting it.
+ */
+public class VelocityRamp {
+	private double maxAccel;
+	private double maxJerk;
+
+	private double target;
+	private double velocity;
+	private double accel;
+
+	public VelocityRamp(double maxAccel, double maxJerk) {
+		setLimits(maxAccel, maxJerk);
+	}
+
+	public void setLimits(double maxAccel, double maxJerk) {
+		this.maxAccel = maxAccel;
+		this.maxJerk = maxJerk;
+	}
+
+	public double getMaxAccel() {
+		return maxAccel;
+	}
+
+	public double getMaxJerk() {
+		return maxJerk;
+	}
+
+	public void setTarget(double target) {
+		this.target = target;
+	}
+
+	public double getTarget() {
+		return target;
+	}
+
+	public double getVelocity() {
+		return velocity;
+	}
+
+	/**
+	 * Jumps straight to {@code velocity} with zero acceleration.
+	 */
+	public void reset(double velocity) {
+		this.target = velocity;
+		this.velocity = velocity;
+		this.accel = 0;
+	}
+
+	public boolean isSettled() {
+		return velocity == target && accel == 0;
+	}
+
+	/**
+	 * Advances the ramp by {@code dt} seconds.
+	 * 
+	 * @return the new velocity
+	 */
+	public double step(double dt) {
+		double error = target - velocity;
+		if (error == 0 && accel == 0) {
+			return velocity;
+		}
+		// Largest acceleration that can still be ramped down to zero by the
+		// jerk limit before the error is used up.
+		double reachable = Math.sqrt(2 * maxJerk * Math.abs(error));
+		double desired = Math.signum(error) * Math.min(maxAccel, reachable);
+		double maxDelta = maxJerk * dt;
+		accel += Math.max(-maxDelta, Math.min(maxDelta, desired - accel));
+		velocity += accel * dt;
+		if ((target - velocity) * error <= 0) {
+			velocity = target;
+			accel = 0;
+		}
+		return velocity;
+	}
+}
@@ -0,0 +1,116 @@
+package org.cornell.pr2.control.input;
+
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.PR2Control;
+import org.cornell.pr2.control.joystick.FrameTicker;
+import org.cornell.pr2.control.joystick.JoystickRepeater;
+import org.cornell.pr2.control.joystick.ResponseCurve;
+
+import android.os.Build;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+/**
+ * Reads the two analog sticks of an external gamepad: the left stick drives
+ * {@link Common.STICK#LEFT} and the right stick (Z/RZ axes)
+ * {@link Common.STICK#RIGHT}.
+ *
+ * The activity forwards its generic motion events to
+ * {@link #onGenericMotionEvent}. Gamepads only send events when an axis
+ * changes, so deflected sticks are re-sent at the {@link JoystickRepeater}
+ * rate like held touch sticks. Joystick axes need API 12, so on older
+ * devices the source simply never reports anything. All methods must be
+ * called on the main thread.
+ */
+public class GamepadInputSource implements InputSource, FrameTicker.Callback {
+	private final ResponseCurve responseCurve = new ResponseCurve();
+	private final float[] last = new float[4];
+	private InputSink sink;
+	private long nextRepeatNanos;
+
+	public GamepadInputSource() {
+		// Gamepad sticks rarely rest exactly at center
+		responseCurve.set(0.15f, 0.3f, 0.95f);
+	}
+
+	public ResponseCurve getResponseCurve() {
+		return responseCurve;
+	}
+
+	@Override
+	public void start(InputSink sink) {
+		this.sink = sink;
+	}
+
+	@Override
+	public void stop() {
+		sink = null;
+		FrameTicker.getInstance().remove(this);
+	}
+
+	/**
+	 * @return true if the event came from a joystick and was consumed
+	 */
+	public boolean onGenericMotionEvent(MotionEvent event) {
+		if (Build.VERSION.SDK_INT < 12 || sink == null)
+			return false;
+		if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) != InputDevice.SOURCE_JOYSTICK
+				|| event.getAction() != MotionEvent.ACTION_MOVE)
+			return false;
+		long now = System.nanoTime();
+		report(Common.STICK.LEFT, 0, event.getAxisValue(MotionEvent.AXIS_X),
+				event.getAxisValue(MotionEvent.AXIS_Y), now);
+		report(Common.STICK.RIGHT, 2, event.getAxisValue(MotionEvent.AXIS_Z),
+				event.getAxisValue(MotionEvent.AXIS_RZ), now);
+		if (isDeflected()) {
+			long period = repeatPeriodNanos();
+			nextRepeatNanos = now + period;
+			FrameTicker.getInstance().add(this, delayMillis(period));
+		} else {
+			FrameTicker.getInstance().remove(this);
+		}
+		return true;
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		if (sink == null) {
+			FrameTicker.getInstance().remove(this);
+			return;
+		}
+		if (frameTimeNanos - nextRepeatNanos >= 0) {
+			nextRepeatNanos = frameTimeNanos + repeatPeriodNanos();
+			if (last[0] != 0 || last[1] != 0)
+				sink.onStickMoved(Common.STICK.LEFT, last[0], last[1], 0);
+			if (last[2] != 0 || last[3] != 0)
+				sink.onStickMoved(Common.STICK.RIGHT, last[2], last[3], 0);
+		}
+		// Sleeps until the next repeat instead of waking every frame
+		FrameTicker.getInstance().add(this,
+				delayMillis(nextRepeatNanos - frameTimeNanos));
+	}
+
+	// Rounded up so the ticker does not wake us just before the deadline
+	private static long delayMillis(long nanos) {
+		return Math.max(1, (nanos + 999999) / 1000000);
+	}
+
+	private boolean isDeflected() {
+		return last[0] != 0 || last[1] != 0 || last[2] != 0 || last[3] != 0;
+	}
+
+	private static long repeatPeriodNanos() {
+		return (long) (1e9 / JoystickRepeater.getInstance().getRate());
+	}
+
+	private void report(Common.STICK stick, int slot, float x, float y,
+			long now) {
+		float v = (float) (responseCurve.apply(x) * PR2Control.stickRange);
+		float h = (float) (responseCurve.apply(y) * PR2Control.stickRange);
+		if (v == last[slot] && h == last[slot + 1])
+			return;
+		last[slot] = v;
+		last[slot + 1] = h;
+		sink.onStickMoved(stick, v, h, now);
+	}
+}
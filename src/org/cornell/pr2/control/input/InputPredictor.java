@@ -0,0 +1,139 @@
+package org.cornell.pr2.control.input;
+
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.LatencyTracker;
+import org.cornell.pr2.control.PR2Control;
+
+/**
+ * Extrapolates stick positions by the time a command takes to take effect,
+ * so the robot follows where the stick is going rather than where it was.
+ *
+ * The horizon is the measured touch-to-publish latency plus the network
+ * delay measured by the {@link LatencyTracker}, capped at
+ * {@link #maxHorizonMillis}. While the link has not been measured, only a
+ * configured fallback is added, which is 0 by default, so nothing is
+ * predicted beyond the delay actually seen on the device. How
+ * far the prediction is trusted depends on how fresh the source's velocity
+ * is and how well it agrees with the positions actually seen; with low
+ * confidence the raw position passes through. Predictions never reverse
+ * the stick's direction or leave its range, and positions that are not
+ * fresh touches (repeats, return-to-center) are never extrapolated.
+ */
+public class InputPredictor implements VelocityInputSink {
+	public static final long defaultLinkLatencyMillis = 0;
+	public static final long maxHorizonMillis = 250;
+
+	// Velocity older than this is not used at all
+	private static final long velocityMaxAgeNanos = 100000000;
+
+	private static final int STICKS = Common.STICK.values().length;
+
+	private final InputSink downstream;
+	private final LatencyTracker latencyTracker;
+
+	private volatile boolean enabled = true;
+	private volatile long linkLatencyNanos = defaultLinkLatencyMillis * 1000000;
+
+	private final float[] velocityV = new float[STICKS];
+	private final float[] velocityH = new float[STICKS];
+	private final long[] velocityNanos = new long[STICKS];
+	private final float[] lastV = new float[STICKS];
+	private final float[] lastH = new float[STICKS];
+	private final long[] lastNanos = new long[STICKS];
+
+	public InputPredictor(InputSink downstream, LatencyTracker latencyTracker) {
+		this.downstream = downstream;
+		this.latencyTracker = latencyTracker;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets the delay between a command being published and the robot acting
+	 * on it that is assumed while the link has not been measured.
+	 */
+	public void setLinkLatencyMillis(long millis) {
+		linkLatencyNanos = millis * 1000000;
+	}
+
+	public long getLinkLatencyMillis() {
+		return linkLatencyNanos / 1000000;
+	}
+
+	/**
+	 * @return how far ahead positions are currently predicted
+	 */
+	public long getHorizonNanos() {
+		long link = latencyTracker.getSmoothedLinkDelayNanos();
+		return Math.min(maxHorizonMillis * 1000000,
+				latencyTracker.getSmoothedTouchToPublishNanos()
+						+ (link < 0 ? linkLatencyNanos : link));
+	}
+
+	@Override
+	public void onStickVelocity(Common.STICK stick, float vVelocity,
+			float hVelocity) {
+		int i = stick.ordinal();
+		velocityV[i] = vVelocity;
+		velocityH[i] = hVelocity;
+		velocityNanos[i] = System.nanoTime();
+	}
+
+	@Override
+	public void onStickMoved(Common.STICK stick, float vSlide, float hSlide,
+			long touchNanos) {
+		int i = stick.ordinal();
+		float v = vSlide;
+		float h = hSlide;
+		if (enabled && touchNanos != 0) {
+			long age = System.nanoTime() - velocityNanos[i];
+			float confidence = age < 0 || age > velocityMaxAgeNanos ? 0
+					: 1 - (float) age / velocityMaxAgeNanos;
+			long dt = touchNanos - lastNanos[i];
+			if (confidence > 0 && lastNanos[i] != 0 && dt > 0
+					&& dt < velocityMaxAgeNanos) {
+				confidence *= agreement(velocityV[i], (vSlide - lastV[i])
+						/ (dt / 1e9f));
+				confidence *= agreement(velocityH[i], (hSlide - lastH[i])
+						/ (dt / 1e9f));
+			}
+			if (confidence > 0) {
+				float horizon = confidence * getHorizonNanos() / 1e9f;
+				v = extrapolate(vSlide, velocityV[i], horizon);
+				h = extrapolate(hSlide, velocityH[i], horizon);
+			}
+		}
+		lastV[i] = vSlide;
+		lastH[i] = hSlide;
+		lastNanos[i] = touchNanos;
+		downstream.onStickMoved(stick, v, h, touchNanos);
+	}
+
+	/**
+	 * @return 1 when the measured velocity matches the observed one, falling
+	 *         to 0 when they point in opposite directions
+	 */
+	private static float agreement(float measured, float observed) {
+		float scale = Math.max(Math.abs(measured), Math.abs(observed));
+		if (scale < 1e-3f)
+			return 1;
+		return Math.max(0, 1 - Math.abs(measured - observed) / (2 * scale));
+	}
+
+	private static float extrapolate(float position, float velocity,
+			float seconds) {
+		if (position == 0)
+			return 0;
+		float range = (float) PR2Control.stickRange;
+		float predicted = position + velocity * seconds;
+		if ((predicted > 0) != (position > 0))
+			return 0;
+		return Math.max(-range, Math.min(range, predicted));
+	}
+}
@@ -0,0 +1,21 @@
+package org.cornell.pr2.control.input;
+
+import org.cornell.pr2.control.Common;
+
+/**
+ * Receives stick positions from an {@link InputSource}.
+ */
+public interface InputSink {
+	/**
+	 * @param vSlide
+	 *            horizontal deflection in stick units, up to
+	 *            {@link org.cornell.pr2.control.PR2Control#stickRange}
+	 * @param hSlide
+	 *            vertical deflection, positive down
+	 * @param touchNanos
+	 *            {@link System#nanoTime()} of the input that produced this
+	 *            position, or 0 if it repeats an unchanged one
+	 */
+	void onStickMoved(Common.STICK stick, float vSlide, float hSlide,
+			long touchNanos);
+}
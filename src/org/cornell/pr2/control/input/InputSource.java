@@ -0,0 +1,18 @@
+package org.cornell.pr2.control.input;
+
+/**
+ * Anything that produces stick positions: the on-screen joysticks, a
+ * gamepad, or a synthetic generator.
+ */
+public interface InputSource {
+	/**
+	 * Starts delivering positions to {@code sink}, replacing any previous
+	 * sink.
+	 */
+	void start(InputSink sink);
+
+	/**
+	 * Stops delivering positions; safe to call when not started.
+	 */
+	void stop();
+}
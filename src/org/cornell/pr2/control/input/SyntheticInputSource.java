@@ -0,0 +1,143 @@
+package org.cornell.pr2.control.input;
+
+import java.util.concurrent.locks.LockSupport;
+
+import org.cornell.pr2.control.Common;
+
+/**
+ * Replays a stick trace at a fixed rate on its own thread, for load testing
+ * the command pipeline without a touchscreen.
+ *
+ * Uses no Android classes, so it also runs on a plain JVM. Each sample is
+ * stamped with the time it was generated, so the {@link
+ * org.cornell.pr2.control.LatencyTracker} sees it like a touch.
+ */
+public class SyntheticInputSource implements InputSource {
+	public static final double maxRate = 1000;
+
+	public interface Trace {
+		/**
+		 * Writes the stick position at {@code seconds} after the start into
+		 * {@code out[0]} (vSlide) and {@code out[1]} (hSlide).
+		 * 
+		 * @return false once the trace has ended
+		 */
+		boolean sample(double seconds, float[] out);
+	}
+
+	/**
+	 * Moves the stick around a circle of the given radius, which exercises
+	 * both axes and every sign combination.
+	 */
+	public static Trace circle(final float radius, final double periodSeconds) {
+		return new Trace() {
+			@Override
+			public boolean sample(double seconds, float[] out) {
+				double phase = 2 * Math.PI * seconds / periodSeconds;
+				out[0] = (float) (radius * Math.cos(phase));
+				out[1] = (float) (radius * Math.sin(phase));
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Replays recorded samples, holding each position until the next one.
+	 * 
+	 * @param seconds
+	 *            ascending sample times, starting at 0
+	 * @param loop
+	 *            restart from the beginning after the last sample instead of
+	 *            ending
+	 */
+	public static Trace recorded(final double[] seconds, final float[] vSlide,
+			final float[] hSlide, final boolean loop) {
+		if (seconds.length == 0 || seconds.length != vSlide.length
+				|| seconds.length != hSlide.length)
+			throw new IllegalArgumentException("mismatched trace arrays");
+		return new Trace() {
+			private int index;
+
+			@Override
+			public boolean sample(double t, float[] out) {
+				double length = seconds[seconds.length - 1];
+				if (t > length) {
+					if (!loop || length <= 0)
+						return false;
+					t %= length;
+				}
+				if (t < seconds[index])
+					index = 0;
+				while (index + 1 < seconds.length && seconds[index + 1] <= t)
+					index++;
+				out[0] = vSlide[index];
+				out[1] = hSlide[index];
+				return true;
+			}
+		};
+	}
+
+	private final Common.STICK stick;
+	private final Trace trace;
+	private final long periodNanos;
+	private volatile InputSink sink;
+	private Thread thread;
+
+	/**
+	 * @param rate
+	 *            samples per second, up to {@link #maxRate}
+	 */
+	public SyntheticInputSource(Common.STICK stick, Trace trace, double rate) {
+		if (rate <= 0 || rate > maxRate)
+			throw new IllegalArgumentException("rate must be in (0, "
+					+ maxRate + "]");
+		this.stick = stick;
+		this.trace = trace;
+		periodNanos = (long) (1e9 / rate);
+	}
+
+	@Override
+	public synchronized void start(InputSink sink) {
+		this.sink = sink;
+		if (thread != null)
+			return;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				replay();
+			}
+		}, "SyntheticInputSource-" + stick);
+		thread.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return thread != null && thread.isAlive();
+	}
+
+	private void replay() {
+		float[] out = new float[2];
+		long start = System.nanoTime();
+		long next = start;
+		while (!Thread.currentThread().isInterrupted()) {
+			long now = System.nanoTime();
+			if (!trace.sample((now - start) / 1e9, out))
+				break;
+			sink.onStickMoved(stick, out[0], out[1], now);
+			// Schedule against the start time so the rate does not drift
+			next += periodNanos;
+			long wait = next - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+			else
+				next = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.cornell.pr2.control.input;
+
+import org.cornell.pr2.control.Common;
+
+/**
+ * An {@link InputSink} that also wants the stick velocity measured by the
+ * source. Sources that can measure it call {@link #onStickVelocity} right
+ * before the matching {@link #onStickMoved}.
+ */
+public interface VelocityInputSink extends InputSink {
+	/**
+	 * @param vVelocity
+	 *            rate of change of vSlide in stick units per second
+	 * @param hVelocity
+	 *            rate of change of hSlide in stick units per second
+	 */
+	void onStickVelocity(Common.STICK stick, float vVelocity, float hVelocity);
+}
@@ -8,10 +8,13 @@ import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.LinearLayout;
 
-public class DualJoystickView extends LinearLayout {
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.input.InputSink;
+import org.cornell.pr2.control.input.InputSource;
+
+public class DualJoystickView extends LinearLayout implements InputSource {
 	@SuppressWarnings("unused")
 	private static final String TAG = DualJoystickView.class.getSimpleName();
 	
@@ -23,6 +26,12 @@ public class DualJoystickView extends LinearLayout {
 
 	private View pad;
 
+	// Geometry from the last measure and layout pass
+	private int lastWidth = -1;
+	private int lastHeight = -1;
+	private int leftStickRight;
+	private int rightStickLeft;
+
 	public DualJoystickView(Context context) {
 		super(context);
 		stickL = new JoystickView(context);
@@ -48,39 +57,44 @@ public class DualJoystickView extends LinearLayout {
 		}
 		
 		pad = new View(getContext());
+
+		// Children are added once; measuring only resizes them
+		stickL.TAG = "L";
+		stickR.TAG = "R";
+		stickL.setStick(Common.STICK.LEFT);
+		stickR.setStick(Common.STICK.RIGHT);
+		addView(stickL, new LayoutParams(0, LayoutParams.MATCH_PARENT));
+		addView(pad, new LayoutParams(0, LayoutParams.MATCH_PARENT));
+		addView(stickR, new LayoutParams(0, LayoutParams.MATCH_PARENT));
 	}
 	
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-		removeView(stickL);
-		removeView(stickR);
-
-		float padW = getMeasuredWidth()-(getMeasuredHeight()*2);
-		int joyWidth = (int) ((getMeasuredWidth()-padW)/2);
-		LayoutParams joyLParams = new LayoutParams(joyWidth,getMeasuredHeight());
-		
-		stickL.setLayoutParams(joyLParams);
-		stickR.setLayoutParams(joyLParams);
-		
-		stickL.TAG = "L";
-		stickR.TAG = "R";
-		stickL.setPointerId(JoystickView.INVALID_POINTER_ID);
-		stickR.setPointerId(JoystickView.INVALID_POINTER_ID);
+		int width = getMeasuredWidth();
+		int height = getMeasuredHeight();
+		if (width == lastWidth && height == lastHeight) {
+			return;
+		}
+		lastWidth = width;
+		lastHeight = height;
 
-		addView(stickL);
+		int padW = Math.max(0, width - (height * 2));
+		int joyWidth = (width - padW) / 2;
+		stickL.getLayoutParams().width = joyWidth;
+		pad.getLayoutParams().width = padW;
+		stickR.getLayoutParams().width = joyWidth;
 
-		ViewGroup.LayoutParams padLParams = new ViewGroup.LayoutParams((int) padW,getMeasuredHeight());
-		removeView(pad);
-		pad.setLayoutParams(padLParams);
-		addView(pad);
-		
-		addView(stickR);
+		// Measure the children again with their new widths; changing the
+		// params in place does not request another layout
+		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 	}
 	
 	@Override
 	protected void onLayout(boolean changed, int l, int t, int r, int b) {
 		super.onLayout(changed, l, t, r, b);
+		leftStickRight = stickL.getRight();
+		rightStickLeft = stickR.getLeft();
 		stickR.setTouchOffset(stickR.getLeft(), stickR.getTop());
 	}
 	
@@ -89,6 +103,30 @@ public class DualJoystickView extends LinearLayout {
 		stickR.setAutoReturnToCenter(right);
 	}
 	
+	@Override
+	public void start(InputSink sink) {
+		stickL.start(sink);
+		stickR.start(sink);
+	}
+
+	@Override
+	public void stop() {
+		stickL.stop();
+		stickR.stop();
+	}
+	
+	public void setTraceEnabled(boolean enabled) {
+		stickL.setTraceEnabled(enabled);
+		stickR.setTraceEnabled(enabled);
+	}
+	
+	public String dumpTrace() {
+		StringBuilder out = new StringBuilder(4096);
+		stickL.dumpTrace(out);
+		stickR.dumpTrace(out);
+		return out.toString();
+	}
+	
 	public void setOnJostickMovedListener(JoystickMovedListener left, JoystickMovedListener right) {
 		stickL.setOnJostickMovedListener(left);
 		stickR.setOnJostickMovedListener(right);
@@ -114,6 +152,11 @@ public class DualJoystickView extends LinearLayout {
 		stickR.setMovementRange(movementRangeRight);
 	}
 
+	public void setResponseCurve(float deadzone, float expo, float saturation) {
+		stickL.setResponseCurve(deadzone, expo, saturation);
+		stickR.setResponseCurve(deadzone, expo, saturation);
+	}
+
 	public void setMoveResolution(float leftMoveResolution, float rightMoveResolution) {
 		stickL.setMoveResolution(leftMoveResolution);
 		stickR.setMoveResolution(rightMoveResolution);
@@ -134,15 +177,55 @@ public class DualJoystickView extends LinearLayout {
 	
 	@Override
 	public boolean dispatchTouchEvent(MotionEvent ev) {
-    	boolean l = stickL.dispatchTouchEvent(ev);
-    	boolean r = stickR.dispatchTouchEvent(ev);
-    	return l || r;
+		return routeTouchEvent(ev);
 	}
 	
 	@Override
 	public boolean onTouchEvent(MotionEvent ev) {
-    	boolean l = stickL.onTouchEvent(ev);
-    	boolean r = stickR.onTouchEvent(ev);
-    	return l || r;
+		return routeTouchEvent(ev);
+	}
+
+	/**
+	 * Gives each pointer to the stick it went down on and sends every event
+	 * only to the sticks it concerns. Sticks remember their own pointer, so
+	 * no extra table is needed to find the owner later.
+	 */
+	private boolean routeTouchEvent(MotionEvent ev) {
+		final int action = ev.getAction();
+		switch (action & MotionEvent.ACTION_MASK) {
+		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_POINTER_DOWN: {
+			final int pointerIndex = (action & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+			JoystickView stick = hitStick(ev.getX(pointerIndex));
+			if (stick == null || stick.getPointerId() != JoystickView.INVALID_POINTER_ID)
+				return false;
+			return stick.dispatchTouchEvent(ev);
+		}
+		case MotionEvent.ACTION_POINTER_UP: {
+			final int pointerIndex = (action & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+			final int pointerId = ev.getPointerId(pointerIndex);
+			if (stickL.getPointerId() == pointerId)
+				return stickL.dispatchTouchEvent(ev);
+			if (stickR.getPointerId() == pointerId)
+				return stickR.dispatchTouchEvent(ev);
+			return false;
+		}
+		default: {
+			// Moves, the final up and cancel go to every stick holding a pointer
+			boolean l = stickL.getPointerId() != JoystickView.INVALID_POINTER_ID
+					&& stickL.dispatchTouchEvent(ev);
+			boolean r = stickR.getPointerId() != JoystickView.INVALID_POINTER_ID
+					&& stickR.dispatchTouchEvent(ev);
+			return l || r;
+		}
+		}
+	}
+
+	private JoystickView hitStick(float x) {
+		if (x < leftStickRight)
+			return stickL;
+		if (x >= rightStickLeft)
+			return stickR;
+		return null;
 	}
 }
@@ -32,25 +32,100 @@ package org.cornell.pr2.control.joystick;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+/**
+ * Hands each finger to the first receiver that wants it.  Moves are
+ * coalesced: every batched sample feeds the finger's velocity estimate, but
+ * receivers get at most one onMove() per frame with the newest position.
+ *
+ * Fingers live in a fixed table indexed by pointer id and free receivers in
+ * a plain array, so routing neither boxes nor allocates, and receivers can
+ * be added or removed from inside a callback.  Pointer ids of
+ * MAX_POINTERS and above are ignored.
+ */
+public class FingerTracker implements View.OnTouchListener, FrameTicker.Callback {
+  public static final int MAX_POINTERS = 10;
+
+  private static class Finger {
+    FingerReceiver receiver;
+    final PointerSamples samples = new PointerSamples();
+    boolean movePending;
+  }
+
+  private final Finger[] fingers = new Finger[ MAX_POINTERS ];
+  private FingerReceiver[] inactiveReceivers = new FingerReceiver[ 4 ];
+  private int inactiveCount;
+  private long lastMoveNanos;
 
-public class FingerTracker implements View.OnTouchListener {
-  private ArrayList<FingerReceiver> inactiveReceivers = new ArrayList<FingerReceiver>();
-  private HashMap<Integer, FingerReceiver> idToReceiverMap = new HashMap<Integer, FingerReceiver>();
+  public FingerTracker() {
+    for( int i = 0; i < MAX_POINTERS; i++ ) {
+      fingers[ i ] = new Finger();
+    }
+  }
 
   public void addReceiver( FingerReceiver receiver ) {
-    inactiveReceivers.add( receiver );
+    if( inactiveCount == inactiveReceivers.length ) {
+      FingerReceiver[] grown = new FingerReceiver[ inactiveCount * 2 ];
+      System.arraycopy( inactiveReceivers, 0, grown, 0, inactiveCount );
+      inactiveReceivers = grown;
+    }
+    inactiveReceivers[ inactiveCount++ ] = receiver;
   }
 
   public void removeReceiver( FingerReceiver receiver ) {
-    if( !inactiveReceivers.remove( receiver ) ) {
-      for( Integer id: idToReceiverMap.keySet() ) {
-        if( idToReceiverMap.get( id ) == receiver ) {
-          idToReceiverMap.remove( id );
-        }
+    for( int i = 0; i < inactiveCount; i++ ) {
+      if( inactiveReceivers[ i ] == receiver ) {
+        removeInactive( i );
+        return;
+      }
+    }
+    Finger finger = findFinger( receiver );
+    if( finger != null ) {
+      release( finger );
+    }
+  }
+
+  /**
+   * @return x velocity in pixels per second of the finger held by
+   * receiver, or 0 if it holds none.
+   */
+  public float getVelocityX( FingerReceiver receiver ) {
+    Finger finger = findFinger( receiver );
+    return finger == null ? 0 : finger.samples.getVelocityX();
+  }
+
+  public float getVelocityY( FingerReceiver receiver ) {
+    Finger finger = findFinger( receiver );
+    return finger == null ? 0 : finger.samples.getVelocityY();
+  }
+
+  private Finger findFinger( FingerReceiver receiver ) {
+    for( int id = 0; id < MAX_POINTERS; id++ ) {
+      if( fingers[ id ].receiver == receiver ) {
+        return fingers[ id ];
       }
     }
+    return null;
+  }
+
+  private Finger activeFinger( int pointerId ) {
+    if( pointerId < 0 || pointerId >= MAX_POINTERS ) {
+      return null;
+    }
+    Finger finger = fingers[ pointerId ];
+    return finger.receiver == null ? null : finger;
+  }
+
+  // Keeps the remaining receivers in order so the first one added still
+  // gets the first say on a new finger
+  private void removeInactive( int index ) {
+    inactiveCount--;
+    System.arraycopy( inactiveReceivers, index + 1, inactiveReceivers, index, inactiveCount - index );
+    inactiveReceivers[ inactiveCount ] = null;
+  }
+
+  private void release( Finger finger ) {
+    finger.receiver = null;
+    finger.movePending = false;
   }
 
   public boolean onTouch( View v, MotionEvent event ) {
@@ -73,10 +148,18 @@ public class FingerTracker implements View.OnTouchListener {
     }
 
     if( down ) {
-      for( FingerReceiver receiver: inactiveReceivers ) {
+      if( pointerId < 0 || pointerId >= MAX_POINTERS || fingers[ pointerId ].receiver != null ) {
+        return false;
+      }
+      for( int i = 0; i < inactiveCount; i++ ) {
+        FingerReceiver receiver = inactiveReceivers[ i ];
         if( receiver.onDown( x, y )) {
-          inactiveReceivers.remove( receiver );
-          idToReceiverMap.put( Integer.valueOf( pointerId ), receiver );
+          removeInactive( i );
+          Finger finger = fingers[ pointerId ];
+          finger.receiver = receiver;
+          finger.movePending = false;
+          finger.samples.reset();
+          finger.samples.add( x, y, event.getEventTime() );
           return true;
         }
       }
@@ -86,45 +169,55 @@ public class FingerTracker implements View.OnTouchListener {
     if( action == MotionEvent.ACTION_MOVE ) {
       boolean usedThisEvent = false;
       for( int pointerIndex = 0; pointerIndex < event.getPointerCount(); pointerIndex++ ) {
-        pointerId = event.getPointerId( pointerIndex );
-        FingerReceiver receiver = idToReceiverMap.get( Integer.valueOf( pointerId ));
-        if( receiver != null ) {
-          receiver.onMove( event.getX( pointerIndex ), event.getY( pointerIndex ));
+        Finger finger = activeFinger( event.getPointerId( pointerIndex ));
+        if( finger != null ) {
+          finger.samples.addMove( event, pointerIndex );
+          finger.movePending = true;
           usedThisEvent = true;
         }
       }
-      return usedThisEvent;
-    }
-
-    if( action == MotionEvent.ACTION_UP ) {
-      boolean usedThisEvent = false;
-      for( FingerReceiver receiver: idToReceiverMap.values() ) {
-        receiver.onUp();
-        inactiveReceivers.add( receiver );
-        usedThisEvent = true;
+      if( usedThisEvent ) {
+        long now = System.nanoTime();
+        if( now - lastMoveNanos >= FrameTicker.FRAME_MILLIS * 1000000 ) {
+          dispatchMoves( now );
+        } else {
+          FrameTicker.getInstance().add( this );
+        }
       }
-      idToReceiverMap.clear();
       return usedThisEvent;
     }
 
-    if( action == MotionEvent.ACTION_CANCEL ) {
+    if( action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL ) {
       boolean usedThisEvent = false;
-      for( FingerReceiver receiver: idToReceiverMap.values() ) {
-        inactiveReceivers.add( receiver );
-        usedThisEvent = true;
+      for( int id = 0; id < MAX_POINTERS; id++ ) {
+        Finger finger = fingers[ id ];
+        FingerReceiver receiver = finger.receiver;
+        if( receiver != null ) {
+          if( action == MotionEvent.ACTION_UP ) {
+            dispatchMove( finger );
+            receiver.onUp();
+          }
+          // onUp() may have removed the receiver
+          if( finger.receiver == receiver ) {
+            release( finger );
+            addReceiver( receiver );
+          }
+          usedThisEvent = true;
+        }
       }
-      idToReceiverMap.clear();
       return usedThisEvent;
     }
 
     if( action == MotionEvent.ACTION_POINTER_UP ) {
-      int pointerIndex = event.getActionIndex();
-      pointerId = event.getPointerId( pointerIndex );
-      FingerReceiver receiver = idToReceiverMap.get( Integer.valueOf( pointerId ));
-      if( receiver != null ) {
+      Finger finger = activeFinger( event.getPointerId( event.getActionIndex() ));
+      if( finger != null ) {
+        FingerReceiver receiver = finger.receiver;
+        dispatchMove( finger );
         receiver.onUp();
-        idToReceiverMap.remove( Integer.valueOf( pointerId ));
-        inactiveReceivers.add( receiver );
+        if( finger.receiver == receiver ) {
+          release( finger );
+          addReceiver( receiver );
+        }
         return true;
       } else {
         return false;
@@ -133,4 +226,26 @@ public class FingerTracker implements View.OnTouchListener {
 
     return false;
   }
+
+  @Override
+  public void doFrame( long frameTimeNanos ) {
+    FrameTicker.getInstance().remove( this );
+    dispatchMoves( frameTimeNanos );
+  }
+
+  private void dispatchMoves( long nowNanos ) {
+    lastMoveNanos = nowNanos;
+    for( int id = 0; id < MAX_POINTERS; id++ ) {
+      dispatchMove( fingers[ id ] );
+    }
+  }
+
+  private void dispatchMove( Finger finger ) {
+    FingerReceiver receiver = finger.receiver;
+    if( receiver != null && finger.movePending ) {
+      finger.movePending = false;
+      finger.samples.computeVelocity();
+      receiver.onMove( finger.samples.getX(), finger.samples.getY() );
+    }
+  }
 }
@@ -0,0 +1,113 @@
+package org.cornell.pr2.control.joystick;
+
+/**
+ * Animates a value from 0 to 1 over a fixed duration, one step per
+ * {@link FrameTicker} frame.
+ *
+ * The fraction handed to the listener is shaped by one of the EASE_*
+ * curves. An animator is reused across runs, so starting one allocates
+ * nothing. All methods must be called on the main thread.
+ */
+public class FrameAnimator implements FrameTicker.Callback {
+	public final static int EASE_LINEAR = 0;
+	public final static int EASE_OUT_QUAD = 1;
+	public final static int EASE_OUT_CUBIC = 2;
+	public final static int EASE_IN_OUT_CUBIC = 3;
+
+	public interface Listener {
+		/**
+		 * @param fraction
+		 *            eased progress; exactly 1 on the last frame
+		 */
+		void onAnimationFrame(float fraction);
+
+		/**
+		 * Called after the last frame, but not when the animation is
+		 * cancelled.
+		 */
+		void onAnimationEnd();
+	}
+
+	private final Listener listener;
+	private long durationNanos;
+	private int easing;
+	private long startNanos;
+	private boolean running;
+
+	public FrameAnimator(Listener listener, long durationMillis, int easing) {
+		this.listener = listener;
+		setDuration(durationMillis);
+		setEasing(easing);
+	}
+
+	public void setDuration(long durationMillis) {
+		durationNanos = Math.max(1, durationMillis * 1000000);
+	}
+
+	public long getDuration() {
+		return durationNanos / 1000000;
+	}
+
+	public void setEasing(int easing) {
+		this.easing = easing;
+	}
+
+	public int getEasing() {
+		return easing;
+	}
+
+	/**
+	 * Starts from the beginning, restarting a run that is in progress.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		running = true;
+		FrameTicker.getInstance().add(this);
+	}
+
+	public void cancel() {
+		if (running) {
+			running = false;
+			FrameTicker.getInstance().remove(this);
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		float t = Math.min(1f, (float) (frameTimeNanos - startNanos)
+				/ durationNanos);
+		if (t < 0)
+			t = 0;
+		boolean last = t >= 1f;
+		if (last) {
+			running = false;
+			FrameTicker.getInstance().remove(this);
+		}
+		listener.onAnimationFrame(last ? 1f : ease(easing, t));
+		if (last)
+			listener.onAnimationEnd();
+	}
+
+	public static float ease(int easing, float t) {
+		switch (easing) {
+		case EASE_OUT_QUAD:
+			return 1 - (1 - t) * (1 - t);
+		case EASE_OUT_CUBIC: {
+			float u = 1 - t;
+			return 1 - u * u * u;
+		}
+		case EASE_IN_OUT_CUBIC: {
+			if (t < 0.5f)
+				return 4 * t * t * t;
+			float u = -2 * t + 2;
+			return 1 - u * u * u / 2;
+		}
+		default:
+			return t;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package org.cornell.pr2.control.joystick;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Frame clock on the main thread shared by the joystick views.
+ *
+ * Choreographer only exists from API 16, so frames come from a main-looper
+ * {@link Handler} posted at a fixed frame interval. Each frame is scheduled
+ * a whole interval after the previous one rather than after the callbacks
+ * finish, so ticks do not drift.
+ *
+ * A callback added with {@link #add(Callback)} runs on every frame. One
+ * added with {@link #add(Callback, long)} only runs once its delay has
+ * passed and then behaves like the former, unless it re-adds itself with
+ * another delay; callbacks that only need to run now and then thus do not
+ * wake the main thread on every frame. The ticker only runs while at least
+ * one callback is registered. All methods must be called on the main thread.
+ */
+public class FrameTicker {
+	public static final long FRAME_MILLIS = 16;
+
+	public interface Callback {
+		/**
+		 * @param frameTimeNanos
+		 *            {@link System#nanoTime()} at the start of this frame
+		 */
+		void doFrame(long frameTimeNanos);
+	}
+
+	private static FrameTicker instance;
+
+	public static FrameTicker getInstance() {
+		if (instance == null) {
+			instance = new FrameTicker();
+		}
+		return instance;
+	}
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private Callback[] callbacks = new Callback[4];
+	// Uptime at which each callback runs next, or 0 to run on every frame
+	private long[] wakeUptimes = new long[4];
+	private int count;
+	private Callback[] frame = new Callback[4];
+	private long nextFrameUptime;
+	private boolean scheduled;
+	private long scheduledUptime;
+
+	private final Runnable tick = new Runnable() {
+		@Override
+		public void run() {
+			doFrame();
+		}
+	};
+
+	private FrameTicker() {
+	}
+
+	/**
+	 * Calls {@code callback} on every frame, starting with the next one,
+	 * until it is removed.
+	 */
+	public void add(Callback callback) {
+		add(callback, 0);
+	}
+
+	/**
+	 * Calls {@code callback} once {@code delayMillis} have passed, and on
+	 * every frame after that until it is removed or added again. Adding a
+	 * callback that is already registered only replaces its delay.
+	 */
+	public void add(Callback callback, long delayMillis) {
+		long uptime = SystemClock.uptimeMillis();
+		int i = indexOf(callback);
+		if (i < 0) {
+			if (count == callbacks.length) {
+				Callback[] c = new Callback[count * 2];
+				long[] w = new long[count * 2];
+				System.arraycopy(callbacks, 0, c, 0, count);
+				System.arraycopy(wakeUptimes, 0, w, 0, count);
+				callbacks = c;
+				wakeUptimes = w;
+			}
+			i = count++;
+			callbacks[i] = callback;
+		}
+		wakeUptimes[i] = delayMillis > 0 ? uptime + delayMillis : 0;
+		if (nextFrameUptime <= uptime) {
+			// No frame is running; the next one is a whole frame out, so work
+			// deferred to the next frame really waits for it
+			nextFrameUptime = uptime + FRAME_MILLIS;
+		}
+		schedule();
+	}
+
+	public void remove(Callback callback) {
+		int i = indexOf(callback);
+		if (i < 0) {
+			return;
+		}
+		count--;
+		System.arraycopy(callbacks, i + 1, callbacks, i, count - i);
+		System.arraycopy(wakeUptimes, i + 1, wakeUptimes, i, count - i);
+		callbacks[count] = null;
+		if (count == 0 && scheduled) {
+			handler.removeCallbacks(tick);
+			scheduled = false;
+		}
+	}
+
+	private int indexOf(Callback callback) {
+		for (int i = 0; i < count; i++) {
+			if (callbacks[i] == callback) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void schedule() {
+		if (count == 0) {
+			return;
+		}
+		long target = Long.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			long wake = wakeUptimes[i] == 0 ? nextFrameUptime : wakeUptimes[i];
+			if (wake < target) {
+				target = wake;
+			}
+		}
+		if (scheduled) {
+			if (scheduledUptime <= target) {
+				return;
+			}
+			handler.removeCallbacks(tick);
+		}
+		scheduled = true;
+		scheduledUptime = target;
+		handler.postAtTime(tick, target);
+	}
+
+	private void doFrame() {
+		scheduled = false;
+		long uptime = SystemClock.uptimeMillis();
+		// Per-frame callbacks only run on frame boundaries, even when a
+		// delayed callback woke the ticker in between
+		boolean frameDue = nextFrameUptime <= uptime;
+		if (frameDue) {
+			do {
+				nextFrameUptime += FRAME_MILLIS;
+			} while (nextFrameUptime <= uptime);
+		}
+		if (frame.length < count) {
+			frame = new Callback[count * 2];
+		}
+		int due = 0;
+		for (int i = 0; i < count; i++) {
+			long wake = wakeUptimes[i];
+			if (wake == 0 ? frameDue : wake <= uptime) {
+				wakeUptimes[i] = 0;
+				frame[due++] = callbacks[i];
+			}
+		}
+		long now = System.nanoTime();
+		for (int i = 0; i < due; i++) {
+			Callback callback = frame[i];
+			frame[i] = null;
+			// Skip callbacks removed by an earlier callback in this frame
+			if (indexOf(callback) >= 0) {
+				callback.doFrame(now);
+			}
+		}
+		schedule();
+	}
+}
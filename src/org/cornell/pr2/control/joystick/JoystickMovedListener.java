@@ -3,7 +3,8 @@ package org.cornell.pr2.control.joystick;
 import android.view.View.OnTouchListener;
 
 public interface JoystickMovedListener extends OnTouchListener  {
-	public void OnMoved(int pan, int tilt);
+	// Stick position in user units, up to the movement range
+	public void OnMoved(float pan, float tilt);
 	public void OnReleased();
 	public void OnReturnedToCenter();
 }
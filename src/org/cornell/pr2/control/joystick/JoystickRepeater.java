@@ -0,0 +1,85 @@
+package org.cornell.pr2.control.joystick;
+
+import java.util.ArrayList;
+
+/**
+ * Re-emits the held position of every pressed joystick at a fixed rate, so
+ * a stick held still keeps the robot moving.
+ *
+ * One repeater serves all sticks and runs off the shared {@link FrameTicker},
+ * so repeats arrive on the main thread together with the touch events and no
+ * thread is started per touch. The ticker is only asked to wake it at the
+ * next repeat deadline, not on every frame. All methods must be called on
+ * the main thread.
+ */
+public class JoystickRepeater implements FrameTicker.Callback {
+	public static final double defaultRate = 10;
+
+	private static JoystickRepeater instance;
+
+	public static JoystickRepeater getInstance() {
+		if (instance == null) {
+			instance = new JoystickRepeater();
+		}
+		return instance;
+	}
+
+	private final ArrayList<JoystickView> held = new ArrayList<JoystickView>();
+	private long periodNanos = (long) (1e9 / defaultRate);
+	private long nextRepeatNanos;
+
+	private JoystickRepeater() {
+	}
+
+	/**
+	 * Sets how many times per second held positions are re-sent. Rates above
+	 * the frame rate are limited to one repeat per frame.
+	 */
+	public void setRate(double rate) {
+		periodNanos = (long) (1e9 / rate);
+	}
+
+	public double getRate() {
+		return 1e9 / periodNanos;
+	}
+
+	public void hold(JoystickView view) {
+		if (held.contains(view)) {
+			return;
+		}
+		held.add(view);
+		if (held.size() == 1) {
+			nextRepeatNanos = System.nanoTime() + periodNanos;
+			FrameTicker.getInstance().add(this, delayMillis(periodNanos));
+		}
+	}
+
+	public void release(JoystickView view) {
+		if (held.remove(view) && held.isEmpty()) {
+			FrameTicker.getInstance().remove(this);
+		}
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		if (frameTimeNanos - nextRepeatNanos >= 0) {
+			nextRepeatNanos += periodNanos;
+			if (frameTimeNanos - nextRepeatNanos >= 0) {
+				nextRepeatNanos = frameTimeNanos + periodNanos;
+			}
+			for (int i = held.size() - 1; i >= 0; i--) {
+				held.get(i).repeatHeldPosition();
+			}
+		}
+		// A repeat may have released the last stick
+		if (!held.isEmpty()) {
+			FrameTicker.getInstance().add(this,
+					delayMillis(nextRepeatNanos - frameTimeNanos));
+		}
+	}
+
+	// Rounded up so the ticker does not wake us just before the deadline
+	private static long delayMillis(long nanos) {
+		return Math.max(1, (nanos + 999999) / 1000000);
+	}
+}
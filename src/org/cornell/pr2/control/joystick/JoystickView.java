@@ -1,18 +1,23 @@
 package org.cornell.pr2.control.joystick;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.os.Handler;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
 import android.view.View;
+import org.cornell.pr2.control.Common;
+import org.cornell.pr2.control.input.InputSink;
+import org.cornell.pr2.control.input.InputSource;
+import org.cornell.pr2.control.input.VelocityInputSink;
 import org.ros.android.views.RosImageView;
 
-public class JoystickView extends RosImageView {
+public class JoystickView extends RosImageView implements InputSource {
 	public static final int INVALID_POINTER_ID = -1;
 
 	// =========================================
@@ -36,6 +41,11 @@ public class JoystickView extends RosImageView {
 	private JoystickMovedListener moveListener;
 	private JoystickClickedListener clickListener;
 
+	// Where positions go when this stick is used as an input source
+	private Common.STICK stick = Common.STICK.LEFT;
+	private InputSink inputSink;
+	private VelocityInputSink velocitySink;
+
 	// # of pixels movement required between reporting to the listener
 	private float moveResolution;
 
@@ -69,9 +79,15 @@ public class JoystickView extends RosImageView {
 	// sensitivities)
 	private float reportX, reportY;
 
-	// Handle center in view coordinates
+	// Handle center in view coordinates, as last drawn
 	private float handleX, handleY;
 
+	// Background circle rendered once per size
+	private Bitmap background;
+
+	// Reused for invalidating the handle's old and new bounds
+	private final Rect dirty = new Rect();
+
 	// Center of the view in view coordinates
 	private int cX, cY;
 
@@ -79,20 +95,70 @@ public class JoystickView extends RosImageView {
 	private int dimX, dimY;
 
 	// Cartesian coordinates of last touch point - joystick center is (0,0)
-	private int cartX, cartY;
+	private float cartX, cartY;
 
 	// Polar coordinates of the touch point from joystick center
 	private double radial;
 	private double angle;
 
 	// User coordinates of last touch point
-	private int userX, userY;
+	private float userX, userY;
+
+	// Shapes each axis before scaling to the movement range
+	private final ResponseCurve responseCurve = new ResponseCurve();
 
 	// Offset co-ordinates (used when touch events are received from parent's
 	// coordinate origin)
 	private int offsetX;
 	private int offsetY;
 
+	// Replaces logging on the touch path; off unless enabled at runtime
+	private final TouchTrace trace = new TouchTrace(256);
+
+	// Every sample of the active pointer, batched history included
+	private final PointerSamples samples = new PointerSamples();
+
+	// Moves seen since the last report; at most one report goes out per frame
+	private boolean movePending;
+	private long pendingTouchNanos;
+	private long lastReportNanos;
+	private float pendingPressure;
+
+	// Handle position when the return to center started
+	private float returnFromX, returnFromY;
+
+	private final FrameAnimator returnAnimator = new FrameAnimator(
+			new FrameAnimator.Listener() {
+				@Override
+				public void onAnimationFrame(float fraction) {
+					touchX = returnFromX * (1 - fraction);
+					touchY = returnFromY * (1 - fraction);
+					reportOnMoved(0);
+					invalidateHandle();
+				}
+
+				@Override
+				public void onAnimationEnd() {
+					// The last eased steps are below the move resolution, so
+					// force an exact zero out for the released stick
+					touchX = 0;
+					touchY = 0;
+					reportOnMoved(0, true);
+					invalidateHandle();
+					if (moveListener != null)
+						moveListener.OnReturnedToCenter();
+				}
+			}, 200, FrameAnimator.EASE_OUT_CUBIC);
+
+	private final FrameTicker.Callback reportCallback = new FrameTicker.Callback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			FrameTicker.getInstance().remove(this);
+			if (movePending)
+				reportPendingMove(frameTimeNanos);
+		}
+	};
+
 	// =========================================
 	// Constructors
 	// =========================================
@@ -143,6 +209,7 @@ public class JoystickView extends RosImageView {
 
 		setMovementRange(10);
 		setMoveResolution(1.0f);
+		setResponseCurve(0.05f, 0.3f, 0.95f);
 		setClickThreshold(0.4f);
 		setYAxisInverted(true);
 		setUserCoordinateSystem(COORDINATE_CARTESIAN);
@@ -157,6 +224,17 @@ public class JoystickView extends RosImageView {
 		return autoReturnToCenter;
 	}
 
+	/**
+	 * @param durationMillis
+	 *            how long the handle takes to glide back to center
+	 * @param easing
+	 *            one of the {@link FrameAnimator} EASE_* curves
+	 */
+	public void setReturnToCenterAnimation(long durationMillis, int easing) {
+		returnAnimator.setDuration(durationMillis);
+		returnAnimator.setEasing(easing);
+	}
+
 	public void setUserCoordinateSystem(int userCoordinateSystem) {
 		if (userCoordinateSystem < COORDINATE_CARTESIAN
 				|| movementConstraint > COORDINATE_DIFFERENTIAL)
@@ -215,6 +293,25 @@ public class JoystickView extends RosImageView {
 		return movementRange;
 	}
 
+	/**
+	 * Sets the response curve applied to each axis before it is scaled to the
+	 * movement range.
+	 * 
+	 * @param deadzone
+	 *            deflection below which the stick reports 0, 0...1
+	 * @param expo
+	 *            0 for a linear response, 1 for a fully cubic one
+	 * @param saturation
+	 *            deflection at which the stick reports the full range
+	 */
+	public void setResponseCurve(float deadzone, float expo, float saturation) {
+		responseCurve.set(deadzone, expo, saturation);
+	}
+
+	public ResponseCurve getResponseCurve() {
+		return responseCurve;
+	}
+
 	public void setMoveResolution(float moveResolution) {
 		this.moveResolution = moveResolution;
 	}
@@ -223,64 +320,61 @@ public class JoystickView extends RosImageView {
 		return moveResolution;
 	}
 
-	// private Thread thread = new Thread() {
-	// @Override
-	// public void run() {
-	// try {
-	// while (true) {
-	// sleep(800);
-	// if (timerRunning == true)
-	// mHandler.post(mSendTouchTask);
-	// }
-	// } catch (InterruptedException e) {
-	// e.printStackTrace();
-	// }
-	// }
-	// };
-
-	private volatile Thread runner;
-
-	public synchronized void startThread() {
-		if (runner == null) {
-			runner = new Thread() {
-				public void run() {
-					while (Thread.currentThread() == runner) {
-						try {
-							sleep(1000);
-						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-						// if (timerRunning == true)
-						moveListener.OnMoved(userX, userY);
-						// mHandler.post(mSendTouchTask);
-					}
-				}
-			};
-			runner.start();
-		}
+	// =========================================
+	// Public Methods
+	// =========================================
+
+	public void setTraceEnabled(boolean enabled) {
+		trace.setEnabled(enabled);
 	}
 
-	public synchronized void stopThread() {
-		if (runner != null) {
-			Thread moribund = runner;
-			runner = null;
-			moribund.interrupt();
-		}
+	/**
+	 * Appends the recorded touch trace of this stick, oldest event first.
+	 */
+	public void dumpTrace(StringBuilder out) {
+		trace.dump(TAG, out);
 	}
 
-	private Handler mHandler = new Handler();
-	private boolean timerRunning;
-	private Runnable mSendTouchTask = new Runnable() {
-		public void run() {
-			Log.i("", "Timer Running");
-			moveListener.OnMoved(userX, userY);
-		}
-	};
+	/**
+	 * @return stick velocity along the cartesian x axis in user units per
+	 *         second, fitted over the recent touch samples
+	 */
+	public float getVelocityX() {
+		return samples.getVelocityX() / movementRadius * movementRange;
+	}
 
-	// =========================================
-	// Public Methods
-	// =========================================
+	/**
+	 * @return stick velocity along the cartesian y axis in user units per
+	 *         second, with the same sign convention as the reported y
+	 */
+	public float getVelocityY() {
+		float v = samples.getVelocityY() / movementRadius * movementRange;
+		return yAxisInverted ? v : -v;
+	}
+
+	/**
+	 * Sets which stick this view reports as to its {@link InputSink}.
+	 */
+	public void setStick(Common.STICK stick) {
+		this.stick = stick;
+	}
+
+	public Common.STICK getStick() {
+		return stick;
+	}
+
+	@Override
+	public void start(InputSink sink) {
+		inputSink = sink;
+		velocitySink = sink instanceof VelocityInputSink ? (VelocityInputSink) sink
+				: null;
+	}
+
+	@Override
+	public void stop() {
+		inputSink = null;
+		velocitySink = null;
+	}
 
 	public void setOnJostickMovedListener(JoystickMovedListener listener) {
 		this.moveListener = listener;
@@ -319,6 +413,22 @@ public class JoystickView extends RosImageView {
 		handleRadius = (int) (d * 0.25);
 		handleInnerBoundaries = handleRadius;
 		movementRadius = Math.min(cX, cY) - handleInnerBoundaries;
+
+		if (background == null || background.getWidth() != d
+				|| background.getHeight() != d) {
+			renderBackground(d);
+		}
+	}
+
+	private void renderBackground(int d) {
+		if (background != null) {
+			background.recycle();
+			background = null;
+		}
+		if (d <= 0)
+			return;
+		background = Bitmap.createBitmap(d, d, Bitmap.Config.ARGB_8888);
+		new Canvas(background).drawCircle(cX, cY, bgRadius, bgPaint);
 	}
 
 	private int measure(int measureSpec) {
@@ -341,7 +451,10 @@ public class JoystickView extends RosImageView {
 	protected void onDraw(Canvas canvas) {
 		canvas.save();
 		// Draw the background
-		canvas.drawCircle(cX, cY, bgRadius, bgPaint);
+		if (background != null)
+			canvas.drawBitmap(background, 0, 0, null);
+		else
+			canvas.drawCircle(cX, cY, bgRadius, bgPaint);
 
 		// Draw the handle
 		handleX = touchX + cX;
@@ -381,6 +494,22 @@ public class JoystickView extends RosImageView {
 		canvas.restore();
 	}
 
+	// Invalidates only the union of the drawn and the new handle bounds
+	private void invalidateHandle() {
+		if (D) {
+			invalidate();
+			return;
+		}
+		float x = touchX + cX;
+		float y = touchY + cY;
+		// One extra pixel for the anti-aliased edge
+		int r = handleRadius + 1;
+		dirty.set((int) Math.min(x, handleX) - r, (int) Math.min(y, handleY)
+				- r, (int) Math.max(x, handleX) + r + 1,
+				(int) Math.max(y, handleY) + r + 1);
+		invalidate(dirty);
+	}
+
 	// Constrain touch within a box
 	private void constrainBox() {
 		touchX = Math.max(Math.min(touchX, movementRadius), -movementRadius);
@@ -399,20 +528,44 @@ public class JoystickView extends RosImageView {
 	}
 
 	public void timedMessages(boolean flag) {
-		timerRunning = flag;
-
 		if (flag == true) {
-			Log.i("", "Start Timer");
-			startThread();
-			// mHandler.removeCallbacks(mSendTouchTask);
-			// mHandler.postDelayed(mSendTouchTask, 1000);
+			trace.record(TouchTrace.TIMER_START, pointerId, 0, 0);
+			JoystickRepeater.getInstance().hold(this);
 		} else if (flag == false) {
-			// mHandler.removeCallbacks(mSendTouchTask);
-			Log.i("", "Stopping Timer");
-			stopThread();
+			trace.record(TouchTrace.TIMER_STOP, pointerId, 0, 0);
+			JoystickRepeater.getInstance().release(this);
 		}
 	}
 
+	/**
+	 * Re-sends the current position while the stick is held; called by
+	 * {@link JoystickRepeater} on the main thread.
+	 */
+	void repeatHeldPosition() {
+		if (pointerId == INVALID_POINTER_ID)
+			return;
+		if (inputSink != null)
+			inputSink.onStickMoved(stick, userX, userY, 0);
+		if (moveListener != null)
+			moveListener.OnMoved(userX, userY);
+	}
+
+	// A stick that is still held when it is attached again resumes repeating
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (pointerId != INVALID_POINTER_ID)
+			JoystickRepeater.getInstance().hold(this);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		JoystickRepeater.getInstance().release(this);
+		returnAnimator.cancel();
+		cancelPendingMove();
+	}
+
 	public void setPointerId(int id) {
 		this.pointerId = id;
 	}
@@ -426,14 +579,13 @@ public class JoystickView extends RosImageView {
 		final int action = ev.getAction();
 		switch (action & MotionEvent.ACTION_MASK) {
 		case MotionEvent.ACTION_MOVE: {
-			Log.d(TAG, "ACTION_MOVE " + pointerId);
 			return processMoveEvent(ev);
 		}
 		case MotionEvent.ACTION_CANCEL:
 		case MotionEvent.ACTION_UP: {
-			Log.d(TAG, "ACTION_UP OUTSIDE " + pointerId);
+			trace.record(TouchTrace.UP, pointerId, 0, 0);
 			if (pointerId != INVALID_POINTER_ID) {
-				Log.d(TAG, "ACTION_UP " + pointerId);
+				flushPendingMove();
 				returnHandleToCenter();
 				setPointerId(INVALID_POINTER_ID);
 				timedMessages(false);
@@ -445,7 +597,8 @@ public class JoystickView extends RosImageView {
 				final int pointerIndex = (action & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
 				final int pointerId = ev.getPointerId(pointerIndex);
 				if (pointerId == this.pointerId) {
-					Log.d(TAG, "ACTION_POINTER_UP: " + pointerId);
+					trace.record(TouchTrace.POINTER_UP, pointerId, 0, 0);
+					flushPendingMove();
 					returnHandleToCenter();
 					setPointerId(INVALID_POINTER_ID);
 					timedMessages(false);
@@ -459,8 +612,11 @@ public class JoystickView extends RosImageView {
 				int x = (int) ev.getX();
 				if (x >= offsetX && x < offsetX + dimX) {
 					setPointerId(ev.getPointerId(0));
+					returnAnimator.cancel();
+					samples.reset();
+					samples.add(ev.getX(), ev.getY(), ev.getEventTime());
 					timedMessages(true);
-					Log.d(TAG, "ACTION_DOWN: " + getPointerId());
+					trace.record(TouchTrace.DOWN, pointerId, x, 0);
 					return true;
 				}
 			}
@@ -470,10 +626,14 @@ public class JoystickView extends RosImageView {
 			if (pointerId == INVALID_POINTER_ID) {
 				final int pointerIndex = (action & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
 				final int pointerId = ev.getPointerId(pointerIndex);
-				int x = (int) ev.getX(pointerId);
+				int x = (int) ev.getX(pointerIndex);
 				if (x >= offsetX && x < offsetX + dimX) {
-					Log.d(TAG, "ACTION_POINTER_DOWN: " + pointerId);
+					trace.record(TouchTrace.POINTER_DOWN, pointerId, x, 0);
 					setPointerId(pointerId);
+					returnAnimator.cancel();
+					samples.reset();
+					samples.add(ev.getX(pointerIndex), ev.getY(pointerIndex),
+							ev.getEventTime());
 					timedMessages(true);
 
 					return true;
@@ -488,24 +648,64 @@ public class JoystickView extends RosImageView {
 	private boolean processMoveEvent(MotionEvent ev) {
 		if (pointerId != INVALID_POINTER_ID) {
 			final int pointerIndex = ev.findPointerIndex(pointerId);
-			// Translate touch position to center of view
-			float x = ev.getX(pointerIndex);
-			touchX = x - cX - offsetX;
-			float y = ev.getY(pointerIndex);
-			touchY = y - cY - offsetY;
-//			 Log.d(TAG,
-//			 String.format("ACTION_MOVE: (%03.0f, %03.0f) => (%03.0f, %03.0f)",
-//			 x, y, touchX, touchY));
-			reportOnMoved();
-			invalidate();
-			touchPressure = ev.getPressure(pointerIndex);
-			reportOnPressure();
+			if (pointerIndex < 0)
+				return false;
+			long now = System.nanoTime();
+			samples.addMove(ev, pointerIndex);
+			pendingPressure = ev.getPressure(pointerIndex);
+			if (!movePending) {
+				// Latency is measured from the oldest unreported move
+				pendingTouchNanos = now;
+				movePending = true;
+			}
+			if (now - lastReportNanos >= FrameTicker.FRAME_MILLIS * 1000000) {
+				reportPendingMove(now);
+			} else {
+				FrameTicker.getInstance().add(reportCallback);
+			}
 			return true;
 		}
 		return false;
 	}
 
-	private void reportOnMoved() {
+	// Hands the newest sample of all moves since the last report downstream
+	private void reportPendingMove(long nowNanos) {
+		movePending = false;
+		lastReportNanos = nowNanos;
+		samples.computeVelocity();
+		// Translate touch position to center of view
+		float x = samples.getX();
+		touchX = x - cX - offsetX;
+		float y = samples.getY();
+		touchY = y - cY - offsetY;
+		trace.record(TouchTrace.MOVE, pointerId, (int) x, (int) y);
+		reportOnMoved(pendingTouchNanos);
+		invalidateHandle();
+		touchPressure = pendingPressure;
+		reportOnPressure();
+	}
+
+	// Reports a move still waiting for its frame, so the last real position
+	// goes out before the stick returns to center
+	private void flushPendingMove() {
+		if (movePending)
+			reportPendingMove(System.nanoTime());
+		FrameTicker.getInstance().remove(reportCallback);
+	}
+
+	private void cancelPendingMove() {
+		movePending = false;
+		FrameTicker.getInstance().remove(reportCallback);
+	}
+
+	private void reportOnMoved(long touchNanos) {
+		reportOnMoved(touchNanos, false);
+	}
+
+	// touchNanos is the System.nanoTime() of the touch behind this move, or
+	// 0 when it was not caused by a touch; force reports even a move below
+	// the move resolution
+	private void reportOnMoved(long touchNanos, boolean force) {
 		if (movementConstraint == CONSTRAIN_CIRCLE)
 			constrainCircle();
 		else
@@ -513,24 +713,42 @@ public class JoystickView extends RosImageView {
 
 		calcUserCoordinates();
 
-		if (moveListener != null) {
+		if (moveListener != null || inputSink != null) {
 			boolean rx = Math.abs(touchX - reportX) >= moveResolution;
 			boolean ry = Math.abs(touchY - reportY) >= moveResolution;
-			if (rx || ry) {
+			if (rx || ry || force) {
 				this.reportX = touchX;
 				this.reportY = touchY;
 
-				Log.d(TAG, String.format("moveListener.OnMoved(%d,%d)",
-						(int) userX, (int) userY));
-				moveListener.OnMoved(userX, userY);
+				trace.record(TouchTrace.REPORT, pointerId,
+						Math.round(userX * 1000), Math.round(userY * 1000));
+				if (velocitySink != null && touchNanos != 0
+						&& userCoordinateSystem == COORDINATE_CARTESIAN)
+					reportVelocity();
+				if (inputSink != null)
+					inputSink.onStickMoved(stick, userX, userY, touchNanos);
+				if (moveListener != null)
+					moveListener.OnMoved(userX, userY);
 			}
 		}
 	}
 
+	// Fitted touch velocity carried through the response curve into user
+	// units per second
+	private void reportVelocity() {
+		float vx = responseCurve.slope(touchX / movementRadius)
+				* samples.getVelocityX() / movementRadius * movementRange;
+		float vy = responseCurve.slope(touchY / movementRadius)
+				* samples.getVelocityY() / movementRadius * movementRange;
+		velocitySink.onStickVelocity(stick, vx, yAxisInverted ? vy : -vy);
+	}
+
 	private void calcUserCoordinates() {
 		// First convert to cartesian coordinates
-		cartX = (int) (touchX / movementRadius * movementRange);
-		cartY = (int) (touchY / movementRadius * movementRange);
+		if (movementRadius <= 0)
+			return;
+		cartX = responseCurve.apply(touchX / movementRadius) * movementRange;
+		cartY = responseCurve.apply(touchY / movementRadius) * movementRange;
 
 		radial = Math.sqrt((cartX * cartX) + (cartY * cartY));
 		angle = Math.atan2(cartY, cartX);
@@ -547,14 +765,14 @@ public class JoystickView extends RosImageView {
 			userY = cartY - cartX / 4;
 
 			if (userX < -movementRange)
-				userX = (int) -movementRange;
+				userX = -movementRange;
 			if (userX > movementRange)
-				userX = (int) movementRange;
+				userX = movementRange;
 
 			if (userY < -movementRange)
-				userY = (int) -movementRange;
+				userY = -movementRange;
 			if (userY > movementRange)
-				userY = (int) movementRange;
+				userY = movementRange;
 		}
 
 	}
@@ -580,27 +798,9 @@ public class JoystickView extends RosImageView {
 
 	private void returnHandleToCenter() {
 		if (autoReturnToCenter) {
-			final int numberOfFrames = 5;
-			final double intervalsX = (0 - touchX) / numberOfFrames;
-			final double intervalsY = (0 - touchY) / numberOfFrames;
-
-			for (int i = 0; i < numberOfFrames; i++) {
-				final int j = i;
-				postDelayed(new Runnable() {
-					@Override
-					public void run() {
-						touchX += intervalsX;
-						touchY += intervalsY;
-
-						reportOnMoved();
-						invalidate();
-
-						if (moveListener != null && j == numberOfFrames - 1) {
-							moveListener.OnReturnedToCenter();
-						}
-					}
-				}, i * 40);
-			}
+			returnFromX = touchX;
+			returnFromY = touchY;
+			returnAnimator.start();
 
 			if (moveListener != null) {
 				moveListener.OnReleased();
@@ -0,0 +1,134 @@
+package org.cornell.pr2.control.joystick;
+
+import android.view.MotionEvent;
+
+/**
+ * Recent samples of one pointer, including the historical samples Android
+ * batches into each move event.
+ *
+ * Velocity is the least-squares slope over the samples of the last
+ * {@link #WINDOW_MILLIS}, which is far steadier than differencing the
+ * positions of two consecutive events. Samples live in a fixed ring, so
+ * nothing is allocated per event.
+ */
+public class PointerSamples {
+	public static final long WINDOW_MILLIS = 100;
+
+	private static final int CAPACITY = 32;
+
+	private final float[] xs = new float[CAPACITY];
+	private final float[] ys = new float[CAPACITY];
+	private final long[] times = new long[CAPACITY];
+	private int next;
+	private int count;
+	private float velocityX;
+	private float velocityY;
+
+	public void reset() {
+		next = 0;
+		count = 0;
+		velocityX = 0;
+		velocityY = 0;
+	}
+
+	/**
+	 * @param timeMillis
+	 *            event time in the {@link android.os.SystemClock#uptimeMillis()}
+	 *            base
+	 */
+	public void add(float x, float y, long timeMillis) {
+		xs[next] = x;
+		ys[next] = y;
+		times[next] = timeMillis;
+		next = (next + 1) % CAPACITY;
+		if (count < CAPACITY) {
+			count++;
+		}
+	}
+
+	/**
+	 * Adds every batched sample of {@code pointerIndex} in {@code event},
+	 * oldest first, followed by its current position.
+	 */
+	public void addMove(MotionEvent event, int pointerIndex) {
+		int history = event.getHistorySize();
+		for (int i = 0; i < history; i++) {
+			add(event.getHistoricalX(pointerIndex, i),
+					event.getHistoricalY(pointerIndex, i),
+					event.getHistoricalEventTime(i));
+		}
+		add(event.getX(pointerIndex), event.getY(pointerIndex),
+				event.getEventTime());
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public float getX() {
+		return xs[(next + CAPACITY - 1) % CAPACITY];
+	}
+
+	public float getY() {
+		return ys[(next + CAPACITY - 1) % CAPACITY];
+	}
+
+	public long getTimeMillis() {
+		return times[(next + CAPACITY - 1) % CAPACITY];
+	}
+
+	/**
+	 * Refits the velocity to the samples inside the window ending at the
+	 * newest one. Call once per aggregated sample, not per raw sample.
+	 */
+	public void computeVelocity() {
+		velocityX = 0;
+		velocityY = 0;
+		if (count < 2) {
+			return;
+		}
+		long newest = getTimeMillis();
+		int n = 0;
+		double sumT = 0, sumX = 0, sumY = 0;
+		for (int i = 1; i <= count; i++) {
+			int k = (next + CAPACITY - i) % CAPACITY;
+			long age = newest - times[k];
+			if (age > WINDOW_MILLIS) {
+				break;
+			}
+			sumT -= age;
+			sumX += xs[k];
+			sumY += ys[k];
+			n++;
+		}
+		if (n < 2) {
+			return;
+		}
+		double meanT = sumT / n, meanX = sumX / n, meanY = sumY / n;
+		double varT = 0, covX = 0, covY = 0;
+		for (int i = 1; i <= n; i++) {
+			int k = (next + CAPACITY - i) % CAPACITY;
+			double t = (times[k] - newest) - meanT;
+			varT += t * t;
+			covX += t * (xs[k] - meanX);
+			covY += t * (ys[k] - meanY);
+		}
+		if (varT > 0) {
+			// per millisecond to per second
+			velocityX = (float) (covX / varT * 1000);
+			velocityY = (float) (covY / varT * 1000);
+		}
+	}
+
+	/**
+	 * @return velocity from the last {@link #computeVelocity()}, in pixels per
+	 *         second
+	 */
+	public float getVelocityX() {
+		return velocityX;
+	}
+
+	public float getVelocityY() {
+		return velocityY;
+	}
+}
@@ -0,0 +1,94 @@
+package org.cornell.pr2.control.joystick;
+
+import android.util.Log;
+
+/**
+ * Maps a normalized stick deflection in [-1, 1] through a deadzone, an expo
+ * curve and a saturation point.
+ *
+ * Deflections inside the deadzone give 0 and deflections past the
+ * saturation point give full output; in between the range is stretched to
+ * [0, 1] and blended between linear and cubic by the expo amount, so small
+ * deflections give finer control near zero. The curve is sampled into a
+ * table whenever it is configured, and {@link #apply} only interpolates
+ * between two table entries.
+ */
+public class ResponseCurve {
+	private static final String TAG = "ResponseCurve";
+	private static final int STEPS = 256;
+
+	// One extra entry so interpolation at full deflection stays in bounds
+	private final float[] table = new float[STEPS + 2];
+
+	private float deadzone;
+	private float expo;
+	private float saturation = 1;
+
+	public ResponseCurve() {
+		rebuild();
+	}
+
+	/**
+	 * @param deadzone
+	 *            deflection below which the output is 0, 0...1
+	 * @param expo
+	 *            0 for a linear response, 1 for a fully cubic one
+	 * @param saturation
+	 *            deflection at which the output reaches 1, above deadzone;
+	 *            invalid values are logged and the curve is left unchanged
+	 */
+	public void set(float deadzone, float expo, float saturation) {
+		if (deadzone < 0 || saturation > 1 || deadzone >= saturation
+				|| expo < 0 || expo > 1) {
+			Log.e(TAG, "invalid response curve");
+			return;
+		}
+		this.deadzone = deadzone;
+		this.expo = expo;
+		this.saturation = saturation;
+		rebuild();
+	}
+
+	public float getDeadzone() {
+		return deadzone;
+	}
+
+	public float getExpo() {
+		return expo;
+	}
+
+	public float getSaturation() {
+		return saturation;
+	}
+
+	private void rebuild() {
+		for (int i = 0; i <= STEPS; i++) {
+			float x = (float) i / STEPS;
+			float u = (x - deadzone) / (saturation - deadzone);
+			u = Math.max(0, Math.min(1, u));
+			table[i] = (1 - expo) * u + expo * u * u * u;
+		}
+		table[STEPS + 1] = table[STEPS];
+	}
+
+	/**
+	 * @param value
+	 *            deflection in [-1, 1]; values outside are clamped
+	 * @return shaped deflection with the same sign
+	 */
+	public float apply(float value) {
+		float f = Math.min(Math.abs(value), 1f) * STEPS;
+		int i = (int) f;
+		float y = table[i] + (table[i + 1] - table[i]) * (f - i);
+		return value < 0 ? -y : y;
+	}
+
+	/**
+	 * @return slope of the curve at {@code value}, used to carry a
+	 *         deflection velocity through the curve
+	 */
+	public float slope(float value) {
+		int i = (int) (Math.min(Math.abs(value), 1f) * STEPS);
+		return (table[i + 1] - table[i]) * STEPS;
+	}
+}
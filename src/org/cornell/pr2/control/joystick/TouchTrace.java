@@ -0,0 +1,86 @@
+package org.cornell.pr2.control.joystick;
+
+/**
+ * Fixed-size ring of binary touch records used instead of logging on the
+ * touch path.
+ *
+ * Each record is three longs: a {@link System#nanoTime()} stamp, the event
+ * code and pointer id, and two int arguments. Recording never allocates or
+ * makes a syscall and is skipped entirely unless tracing is compiled in
+ * ({@link #COMPILED_IN}) and switched on at runtime. Records are only
+ * formatted when {@link #dump} is called.
+ */
+public class TouchTrace {
+	public static final boolean COMPILED_IN = true;
+
+	public static final int DOWN = 1;
+	public static final int POINTER_DOWN = 2;
+	public static final int MOVE = 3;
+	public static final int UP = 4;
+	public static final int POINTER_UP = 5;
+	// Reported user coordinates in thousandths
+	public static final int REPORT = 6;
+	public static final int TIMER_START = 7;
+	public static final int TIMER_STOP = 8;
+
+	private static final String[] NAMES = { "?", "DOWN", "POINTER_DOWN",
+			"MOVE", "UP", "POINTER_UP", "REPORT", "TIMER_START", "TIMER_STOP" };
+	private static final int RECORD_LONGS = 3;
+
+	private final long[] ring;
+	private final int capacity;
+	private int next;
+	private int count;
+	private volatile boolean enabled;
+
+	public TouchTrace(int capacity) {
+		this.capacity = capacity;
+		ring = new long[capacity * RECORD_LONGS];
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void record(int code, int pointerId, int a, int b) {
+		if (!COMPILED_IN || !enabled) {
+			return;
+		}
+		int i = next * RECORD_LONGS;
+		ring[i] = System.nanoTime();
+		ring[i + 1] = ((long) code << 32) | (pointerId & 0xffffffffL);
+		ring[i + 2] = ((long) a << 32) | (b & 0xffffffffL);
+		next = (next + 1) % capacity;
+		if (count < capacity) {
+			count++;
+		}
+	}
+
+	public void clear() {
+		next = 0;
+		count = 0;
+	}
+
+	/**
+	 * Appends one line per record, oldest first, with times relative to the
+	 * oldest record.
+	 */
+	public void dump(String tag, StringBuilder out) {
+		int first = (next - count + capacity) % capacity;
+		long base = count > 0 ? ring[first * RECORD_LONGS] : 0;
+		for (int n = 0; n < count; n++) {
+			int i = ((first + n) % capacity) * RECORD_LONGS;
+			int code = (int) (ring[i + 1] >> 32);
+			out.append(tag).append(' ');
+			out.append((ring[i] - base) / 1000).append("us ");
+			out.append(code > 0 && code < NAMES.length ? NAMES[code] : NAMES[0]);
+			out.append(" id=").append((int) ring[i + 1]);
+			out.append(" (").append((int) (ring[i + 2] >> 32)).append(',')
+					.append((int) ring[i + 2]).append(")\n");
+		}
+	}
+}